@@ -0,0 +1,149 @@
+package ca.cgjennings.seplugins.export;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the stages of exporting a face that happen after rendering:
+ * applying a dimension limit, running a postprocessing script, and encoding
+ * the image. Each benchmark starts from a synthetic poker-sized card image at
+ * the chosen resolution, so no component files or project are needed.
+ *
+ * <p>
+ * Run with <code>ant bench</code>; see <code>build.xml</code>.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExportBenchmark {
+
+    @Param({"150", "300", "600"})
+    public int ppi;
+
+    @Param({"png", "jpg"})
+    public String format;
+
+    private BufferedImage card;
+    private Exporter plain;
+    private Exporter limited;
+    private Exporter scripted;
+    private Exporter fastPng;
+    private PostprocessingEntry entry;
+    private final File source = new File("benchmark.eon");
+
+    @Setup(Level.Trial)
+    public void createCard() {
+        card = syntheticCard(ppi);
+        plain = exporter(0, "");
+        limited = exporter(512, "");
+        scripted = exporter(0, "bulkItem.image = ImageUtilities.flip(bulkItem.image, true, false);");
+        fastPng = exporter(0, "");
+        fastPng.setPngEncoder(new PngEncoder(6));
+    }
+
+    @Setup(Level.Invocation)
+    public void createEntry() {
+        entry = new PostprocessingEntry(plain, source, card, 0, plain.effectiveProfiles().get(0));
+    }
+
+    @Benchmark
+    public BufferedImage dimensionLimit() {
+        PostprocessingEntry e = new PostprocessingEntry(limited, source, card, 0, limited.effectiveProfiles().get(0));
+        limited.process(e);
+        return e.image;
+    }
+
+    @Benchmark
+    public BufferedImage postprocess() {
+        scripted.process(entry);
+        return entry.image;
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return plain.encode(entry);
+    }
+
+    @Benchmark
+    public byte[] encodeFastPng() throws IOException {
+        return fastPng.encode(entry);
+    }
+
+    private Exporter exporter(int dimensionLimit, String script) {
+        Exporter ex = new Exporter();
+        ex.setFormat(format);
+        ex.setQuality(0.8d);
+        ex.setResolution(ppi);
+        ex.setDimensionLimit(dimensionLimit);
+        ex.setPostprocessingCode(script);
+        return ex;
+    }
+
+    /**
+     * Paints an image that resembles a card face: a framed, rounded card with
+     * gradient artwork, scattered shapes and rows of text. The same image is
+     * produced for a given resolution every time.
+     */
+    static BufferedImage syntheticCard(int ppi) {
+        final int w = (int) Math.round(2.5d * ppi);
+        final int h = (int) Math.round(3.5d * ppi);
+        final BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+        final Graphics2D g = bi.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            final double margin = ppi / 8d;
+            g.setPaint(new GradientPaint(0, 0, new Color(0x5b3a1e), w, h, new Color(0xd8b06a)));
+            g.fill(new RoundRectangle2D.Double(0, 0, w, h, ppi / 4d, ppi / 4d));
+
+            g.setPaint(new GradientPaint(0, (float) margin, new Color(0x20406a), 0, h / 2f, new Color(0x9ec3e6)));
+            g.fillRect((int) margin, (int) margin, (int) (w - 2 * margin), h / 2);
+
+            final Random r = new Random(ppi);
+            for (int i = 0; i < 60; ++i) {
+                g.setColor(new Color(r.nextInt(0x1000000) | 0x60000000, true));
+                final int s = r.nextInt(ppi / 3) + 4;
+                g.fillOval((int) margin + r.nextInt(w - s - 2 * (int) margin), (int) margin + r.nextInt(h / 2 - s), s, s);
+            }
+
+            g.setColor(new Color(0xf4ecd8));
+            g.fillRect((int) margin, h / 2 + (int) margin, (int) (w - 2 * margin), (int) (h / 2 - 2 * margin));
+            g.setColor(Color.BLACK);
+            g.setFont(new Font(Font.SERIF, Font.PLAIN, Math.max(6, ppi / 12)));
+            final int lineHeight = g.getFontMetrics().getHeight();
+            int y = h / 2 + (int) margin + lineHeight;
+            for (int line = 0; y < h - margin; ++line, y += lineHeight) {
+                g.drawString("Line " + line + ": the quick brown fox jumps over the lazy dog", (int) (margin * 1.5d), y);
+            }
+        } finally {
+            g.dispose();
+        }
+        return bi;
+    }
+}
@@ -0,0 +1,274 @@
+package ca.cgjennings.seplugins.export;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Collects exported images into a single ZIP or TAR archive instead of
+ * writing them as separate files. Images are streamed into the archive as
+ * they are written, so nothing is staged on disk. When set on an exporter
+ * with {@link Exporter#setArchive}, the entries are added in a stable order
+ * (by file, then face, then output profile) even when a
+ * {@link BatchExporter} finishes them out of order.
+ *
+ * <p>
+ * The archive must be {@linkplain #close closed} once the export is complete
+ * to write its directory (for ZIP) or end marker (for TAR).
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public abstract class ArchiveWriter implements Closeable {
+
+    private final File file;
+    private File baseFolder;
+    private final Set<String> names = new HashSet<>();
+    private final OrderedOutput order = new OrderedOutput(this::write);
+
+    private ArchiveWriter(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Creates an archive, choosing the format from the file name: a ZIP
+     * archive for <code>.zip</code>, a TAR archive for <code>.tar</code>, or
+     * a compressed TAR archive for <code>.tar.gz</code> or
+     * <code>.tgz</code>. An existing file is replaced.
+     *
+     * @param file the archive file to create
+     * @return a writer for the new archive
+     * @throws IOException if the archive cannot be created
+     * @throws IllegalArgumentException if the file name does not have a
+     * supported extension
+     */
+    public static ArchiveWriter create(File file) throws IOException {
+        final String name = file.getName().toLowerCase(Locale.ROOT);
+        if (name.endsWith(".zip")) {
+            return new Zip(file);
+        }
+        if (name.endsWith(".tar")) {
+            return new Tar(file, false);
+        }
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+            return new Tar(file, true);
+        }
+        throw new IllegalArgumentException("unsupported archive type: " + file.getName());
+    }
+
+    /**
+     * Returns the archive file.
+     *
+     * @return the file being written
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public File getBaseFolder() {
+        return baseFolder;
+    }
+
+    /**
+     * Sets the folder that entry names are relative to. An image exported
+     * from a component inside this folder is stored under its path
+     * relative to the folder; otherwise only its file name is used. If not
+     * set, only file names are used.
+     *
+     * @param folder the base folder, or null
+     */
+    public void setBaseFolder(File folder) {
+        baseFolder = folder == null ? null : folder.getAbsoluteFile();
+    }
+
+    /**
+     * Returns the name to store an exported file under.
+     */
+    String entryName(File exported) {
+        String name = exported.getName();
+        if (baseFolder != null) {
+            final StringBuilder b = new StringBuilder(name);
+            for (File p = exported.getAbsoluteFile().getParentFile(); p != null; p = p.getParentFile()) {
+                if (p.equals(baseFolder)) {
+                    return b.toString();
+                }
+                b.insert(0, '/').insert(0, p.getName());
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Adds an entry to the archive immediately.
+     *
+     * @param name the entry name
+     * @param data the entry content
+     * @throws IOException if an error occurs while writing
+     */
+    public synchronized void write(String name, byte[] data) throws IOException {
+        if (!names.add(name)) {
+            throw new IOException("duplicate archive entry: " + name);
+        }
+        writeEntry(name, data);
+    }
+
+    /**
+     * Returns the sequencer used to add entries in a stable order.
+     */
+    OrderedOutput order() {
+        return order;
+    }
+
+    /**
+     * Writes any entries still waiting for earlier entries, then completes
+     * and closes the archive.
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            order.flush();
+        } finally {
+            synchronized (this) {
+                closeArchive();
+            }
+        }
+    }
+
+    abstract void writeEntry(String name, byte[] data) throws IOException;
+
+    abstract void closeArchive() throws IOException;
+
+    private static final class Zip extends ArchiveWriter {
+
+        private final ZipOutputStream out;
+
+        Zip(File file) throws IOException {
+            super(file);
+            out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        }
+
+        @Override
+        void writeEntry(String name, byte[] data) throws IOException {
+            final ZipEntry e = new ZipEntry(name);
+            e.setTime(System.currentTimeMillis());
+            // most image formats are already compressed
+            if (!name.toLowerCase(Locale.ROOT).endsWith(".bmp")) {
+                final CRC32 crc = new CRC32();
+                crc.update(data, 0, data.length);
+                e.setMethod(ZipEntry.STORED);
+                e.setSize(data.length);
+                e.setCompressedSize(data.length);
+                e.setCrc(crc.getValue());
+            }
+            out.putNextEntry(e);
+            out.write(data);
+            out.closeEntry();
+        }
+
+        @Override
+        void closeArchive() throws IOException {
+            out.close();
+        }
+    }
+
+    private static final class Tar extends ArchiveWriter {
+
+        private static final int BLOCK = 512;
+        private final OutputStream out;
+
+        Tar(File file, boolean compressed) throws IOException {
+            super(file);
+            OutputStream s = new FileOutputStream(file);
+            out = compressed
+                    ? new GZIPOutputStream(s, 64 * 1024)
+                    : new BufferedOutputStream(s, 64 * 1024);
+        }
+
+        @Override
+        void writeEntry(String name, byte[] data) throws IOException {
+            final byte[] header = new byte[BLOCK];
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 100) {
+                // split long names between the prefix and name fields
+                int split = name.lastIndexOf('/');
+                if (split > 0 && name.substring(split + 1).getBytes(StandardCharsets.UTF_8).length > 100) {
+                    split = -1;
+                }
+                final byte[] prefix = split > 0 ? name.substring(0, split).getBytes(StandardCharsets.UTF_8) : null;
+                if (prefix == null || prefix.length > 155) {
+                    throw new IOException("name too long for TAR archive: " + name);
+                }
+                System.arraycopy(prefix, 0, header, 345, prefix.length);
+                bytes = name.substring(split + 1).getBytes(StandardCharsets.UTF_8);
+            }
+            System.arraycopy(bytes, 0, header, 0, bytes.length);
+            octal(header, 100, 8, 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, data.length);
+            octal(header, 136, 12, System.currentTimeMillis() / 1000L);
+            header[156] = '0';
+            System.arraycopy("ustar\0".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 6);
+            header[263] = '0';
+            header[264] = '0';
+
+            // the checksum is computed with its own field filled with spaces
+            for (int i = 148; i < 156; ++i) {
+                header[i] = ' ';
+            }
+            long sum = 0L;
+            for (byte b : header) {
+                sum += b & 0xff;
+            }
+            octal(header, 148, 7, sum);
+            header[155] = ' ';
+
+            out.write(header);
+            out.write(data);
+            final int pad = (BLOCK - data.length % BLOCK) % BLOCK;
+            if (pad > 0) {
+                out.write(new byte[pad]);
+            }
+        }
+
+        /**
+         * Writes a zero-padded, NUL-terminated octal number into a header
+         * field.
+         */
+        private static void octal(byte[] header, int off, int len, long value) throws IOException {
+            final String s = Long.toOctalString(value);
+            if (s.length() > len - 1) {
+                throw new IOException("value too large for TAR header: " + value);
+            }
+            int i = off;
+            for (int pad = len - 1 - s.length(); pad > 0; --pad) {
+                header[i++] = '0';
+            }
+            for (int c = 0; c < s.length(); ++c) {
+                header[i++] = (byte) s.charAt(c);
+            }
+            header[i] = 0;
+        }
+
+        @Override
+        void closeArchive() throws IOException {
+            try {
+                out.write(new byte[BLOCK * 2]);
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,478 @@
+package ca.cgjennings.seplugins.export;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Packs exported faces into grids on one or more large images (atlases or
+ * sprite sheets), as used by game engines and virtual tabletops. When set on
+ * an exporter with {@link Exporter#setAtlas}, each face is copied into its
+ * cell as soon as it has been processed, instead of being written as a
+ * separate file. Faces are placed in a stable order (by file and then face)
+ * no matter which order they finish in. A page is encoded and written as
+ * soon as all of its cells are accounted for, and a JSON index that gives
+ * the page and bounds of every face is written when the atlas is
+ * {@linkplain #close closed}.
+ *
+ * <p>
+ * Cells never overlap, so faces are copied into a page concurrently without
+ * locking the page. Every cell has the same size: either the size set with
+ * {@link #setCellSize}, or else the estimated size of the first face in
+ * file order, reduced if necessary so that the page fits within the
+ * {@linkplain #setMaximumSize maximum size}. Faces of a different size are
+ * scaled to fit their cell and centred in it. Since the size is fixed before
+ * any face is rendered, the layout and index are the same on every run.
+ * Page pixels are charged to the exporter's memory budget, if it has one,
+ * until the page is written.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class AtlasWriter implements Closeable {
+
+    private final File folder;
+    private final String baseName;
+    private final int columns, rows;
+    private int padding = 0;
+    private int maxSize = 8192;
+    private int cellWidth, cellHeight;
+    private String format = "png";
+    private double quality = 1d;
+
+    private int jobCount;
+    private int nextReservation;
+    private int nextPosition;
+    private boolean closed;
+    private final Map<Integer, Page> pages = new HashMap<>();
+    private final TreeMap<Integer, Placement> placements = new TreeMap<>();
+    private final TreeMap<Integer, File> pageFiles = new TreeMap<>();
+
+    /**
+     * Creates a new atlas writer. Pages are written to the folder as
+     * <i>baseName</i>-1.<i>format</i>, <i>baseName</i>-2.<i>format</i>, and so
+     * on, and the index as <i>baseName</i>.json.
+     *
+     * @param folder the folder to write the pages to
+     * @param baseName the base name of the page and index files
+     * @param columns the number of cells across each page
+     * @param rows the number of cells down each page
+     */
+    public AtlasWriter(File folder, String baseName, int columns, int rows) {
+        if (columns < 1 || rows < 1) {
+            throw new IllegalArgumentException("invalid grid: " + columns + 'x' + rows);
+        }
+        this.folder = folder;
+        this.baseName = baseName;
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getPadding() {
+        return padding;
+    }
+
+    /**
+     * Sets the number of empty pixels around each cell.
+     *
+     * @param padding the padding, in pixels
+     */
+    public void setPadding(int padding) {
+        this.padding = Math.max(0, padding);
+    }
+
+    public int getMaximumSize() {
+        return maxSize;
+    }
+
+    /**
+     * Sets the maximum width and height of a page. If the cells would make
+     * a page larger than this, they are made smaller.
+     *
+     * @param maxSize the maximum page size, in pixels
+     */
+    public void setMaximumSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("invalid size: " + maxSize);
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets the size of each cell. If not set, the estimated size of the
+     * first face in file order is used.
+     *
+     * @param width the cell width, in pixels
+     * @param height the cell height, in pixels
+     */
+    public synchronized void setCellSize(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("invalid size: " + width + 'x' + height);
+        }
+        cellWidth = width;
+        cellHeight = height;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the image format and quality of the pages.
+     *
+     * @param format the image format, as accepted by {@link Exporter#setFormat}
+     * except for PDF
+     * @param quality the image quality, from 0 to 1
+     */
+    public void setFormat(String format, double quality) {
+        if (quality < 0d || quality > 1d) {
+            throw new IllegalArgumentException("invalid quality: " + quality);
+        }
+        if (Exporter.FORMAT_PDF.equals(format)) {
+            throw new IllegalArgumentException("atlas pages cannot be PDF files");
+        }
+        this.format = Exporter.checkFormat(format);
+        this.quality = quality;
+    }
+
+    /**
+     * Returns the page files written so far.
+     *
+     * @return the page files, in page order
+     */
+    public synchronized List<File> getPageFiles() {
+        return new ArrayList<>(pageFiles.values());
+    }
+
+    /**
+     * Reserves a range of job numbers for use with {@link #reserve}, returning
+     * the first number in the range.
+     */
+    synchronized int reserveJobs(int count) {
+        final int first = jobCount;
+        jobCount += count;
+        return first;
+    }
+
+    /**
+     * Reserves consecutive cells for the faces of a job, returning the
+     * position of the first cell. Jobs reserve their cells in job order: this
+     * waits until every earlier job has made its reservation. A job that
+     * reserves more than once keeps its first reservation. If no cell size
+     * is set, the first job with faces sets it to the estimated size of its
+     * first face.
+     */
+    synchronized int reserve(int job, int count, Dimension firstFace) throws InterruptedException {
+        while (nextReservation < job) {
+            wait();
+        }
+        if (nextReservation > job) {
+            return -1;
+        }
+        if (cellWidth == 0 && count > 0 && firstFace != null) {
+            cellWidth = Math.max(1, firstFace.width);
+            cellHeight = Math.max(1, firstFace.height);
+        }
+        final int first = nextPosition;
+        nextPosition += count;
+        ++nextReservation;
+        notifyAll();
+        return first;
+    }
+
+    /**
+     * Returns the file of the page that a position is on.
+     */
+    File pageFile(int position) {
+        return new File(folder, baseName + '-' + (position / (columns * rows) + 1) + '.' + format);
+    }
+
+    /**
+     * Copies a face into its cell. If this completes the page, the page is
+     * written. A new page's pixels are charged to the budget, if any.
+     */
+    void place(int position, String source, int face, BufferedImage image, MemoryBudget budget) throws IOException {
+        final Page page;
+        final int cw, ch;
+        synchronized (this) {
+            if (cellWidth == 0) {
+                throw new IllegalStateException("no cell size");
+            }
+            fitCells();
+            cw = cellWidth;
+            ch = cellHeight;
+            page = page(position);
+            page.allocate(budget);
+        }
+
+        // scale the face to fit its cell, keeping its aspect ratio
+        BufferedImage bi = image;
+        final int type = bi.getType();
+        if (bi.getWidth() != cw || bi.getHeight() != ch || (type != BufferedImage.TYPE_INT_ARGB && type != BufferedImage.TYPE_INT_RGB)) {
+            final double scale = Math.min(cw / (double) bi.getWidth(), ch / (double) bi.getHeight());
+            bi = Downsampler.resize(bi,
+                    Math.max(1, Math.min(cw, (int) Math.round(bi.getWidth() * scale))),
+                    Math.max(1, Math.min(ch, (int) Math.round(bi.getHeight() * scale)))
+            );
+        }
+
+        final int cell = position % (columns * rows);
+        final int x = padding + (cell % columns) * (cw + padding) + (cw - bi.getWidth()) / 2;
+        final int y = padding + (cell / columns) * (ch + padding) + (ch - bi.getHeight()) / 2;
+        copy(bi, page.pixels, page.width, x, y);
+
+        synchronized (this) {
+            placements.put(position, new Placement(source, face, page.number, x, y, bi.getWidth(), bi.getHeight()));
+        }
+        cellDone(page);
+    }
+
+    /**
+     * Marks a reserved cell as empty, for a face that could not be exported.
+     */
+    void skip(int position) throws IOException {
+        final Page page;
+        synchronized (this) {
+            fitCells();
+            page = page(position);
+        }
+        cellDone(page);
+    }
+
+    /**
+     * If the cell size would make a page larger than the maximum size,
+     * shrinks the cells to fit.
+     */
+    private void fitCells() {
+        if (cellWidth == 0) {
+            // nothing placed yet; skipped cells don't need a size
+            return;
+        }
+        final int maxCellW = (maxSize - padding * (columns + 1)) / columns;
+        final int maxCellH = (maxSize - padding * (rows + 1)) / rows;
+        if (cellWidth > maxCellW || cellHeight > maxCellH) {
+            final double scale = Math.min(maxCellW / (double) cellWidth, maxCellH / (double) cellHeight);
+            cellWidth = Math.max(1, (int) (cellWidth * scale));
+            cellHeight = Math.max(1, (int) (cellHeight * scale));
+        }
+    }
+
+    private Page page(int position) {
+        final int number = position / (columns * rows);
+        Page page = pages.get(number);
+        if (page == null) {
+            page = new Page(number);
+            pages.put(number, page);
+        }
+        return page;
+    }
+
+    private void cellDone(Page page) throws IOException {
+        final boolean full;
+        synchronized (this) {
+            full = ++page.done == columns * rows;
+            if (full) {
+                pages.remove(page.number);
+            }
+        }
+        if (full) {
+            writePage(page);
+        }
+    }
+
+    private void writePage(Page page) throws IOException {
+        if (page.pixels == null) {
+            // every cell was skipped
+            return;
+        }
+        // wrap the page's own pixels rather than copying them
+        final WritableRaster raster = Raster.createPackedRaster(
+                new DataBufferInt(page.pixels, page.pixels.length), page.width, page.height, page.width,
+                new int[]{0xff0000, 0xff00, 0xff, 0xff000000}, null
+        );
+        final BufferedImage bi = new BufferedImage(ColorModel.getRGBdefault(), raster, false, null);
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+        try {
+            if (Exporter.FORMAT_TIFF.equals(format)) {
+                new TiffEncoder().write(bi, 0d, out);
+            } else if (Exporter.FORMAT_WEBP.equals(format)) {
+                WebpWriter.write(bi, quality, out);
+            } else {
+                final ImageWriterPool pool = ImageWriterPool.getShared();
+                final ImageWriterPool.PooledWriter wr = pool.take(format, quality, false, 0d);
+                try {
+                    wr.writer.write(bi, out);
+                } catch (IOException | RuntimeException ex) {
+                    pool.discard(wr);
+                    throw ex;
+                }
+                pool.give(wr);
+            }
+        } finally {
+            page.free();
+        }
+
+        final File file = pageFile(page.number * columns * rows);
+        AtomicFileWriter.write(file, out.toByteArray());
+        synchronized (this) {
+            pageFiles.put(page.number, file);
+        }
+    }
+
+    /**
+     * Copies an image into a page's pixel array.
+     */
+    private static void copy(BufferedImage bi, int[] dest, int destWidth, int x, int y) {
+        final int w = bi.getWidth();
+        final int h = bi.getHeight();
+        final WritableRaster r = bi.getRaster();
+        final DataBufferInt db = (DataBufferInt) r.getDataBuffer();
+        final int stride = ((SinglePixelPackedSampleModel) r.getSampleModel()).getScanlineStride();
+        final int[] src = db.getData();
+        final boolean opaque = bi.getType() == BufferedImage.TYPE_INT_RGB;
+        for (int row = 0; row < h; ++row) {
+            final int offset = db.getOffset() - r.getSampleModelTranslateX()
+                    + (row - r.getSampleModelTranslateY()) * stride;
+            final int to = (y + row) * destWidth + x;
+            System.arraycopy(src, offset, dest, to, w);
+            if (opaque) {
+                for (int i = to; i < to + w; ++i) {
+                    dest[i] |= 0xff000000;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes any partly filled pages and the index.
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    @Override
+    public void close() throws IOException {
+        final List<Page> remaining;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            remaining = new ArrayList<>(new TreeMap<>(pages).values());
+            pages.clear();
+        }
+        for (Page p : remaining) {
+            writePage(p);
+        }
+        writeIndex();
+    }
+
+    private void writeIndex() throws IOException {
+        final File file = new File(folder, baseName + ".json");
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            synchronized (this) {
+                w.write("{\n  \"columns\": " + columns + ",\n  \"rows\": " + rows
+                        + ",\n  \"padding\": " + padding
+                        + ",\n  \"cellWidth\": " + cellWidth + ",\n  \"cellHeight\": " + cellHeight
+                        + ",\n  \"pages\": [");
+                boolean first = true;
+                for (File page : pageFiles.values()) {
+                    w.write(first ? "\n    " : ",\n    ");
+                    first = false;
+                    w.write(CommandLineExporter.quote(page.getName()));
+                }
+                w.write("\n  ],\n  \"faces\": [");
+                first = true;
+                for (Map.Entry<Integer, Placement> e : placements.entrySet()) {
+                    final Placement p = e.getValue();
+                    w.write(first ? "\n    " : ",\n    ");
+                    first = false;
+                    w.write("{\"position\": " + e.getKey()
+                            + ", \"source\": " + CommandLineExporter.quote(p.source)
+                            + ", \"face\": " + p.face
+                            + ", \"page\": " + CommandLineExporter.quote(pageFile(p.page * columns * rows).getName())
+                            + ", \"x\": " + p.x + ", \"y\": " + p.y
+                            + ", \"width\": " + p.width + ", \"height\": " + p.height + "}");
+                }
+                w.write("\n  ]\n}\n");
+            }
+        }
+    }
+
+    /**
+     * A page being filled. The pixel array is created when the first face is
+     * placed on the page.
+     */
+    private final class Page {
+
+        final int number;
+        int done;
+        int[] pixels;
+        int width, height;
+
+        Page(int number) {
+            this.number = number;
+        }
+
+        MemoryBudget budget;
+
+        void allocate(MemoryBudget budget) {
+            if (pixels == null) {
+                width = padding + columns * (cellWidth + padding);
+                height = padding + rows * (cellHeight + padding);
+                if (budget != null) {
+                    budget.pin(4L * width * height);
+                    this.budget = budget;
+                }
+                pixels = new int[width * height];
+            }
+        }
+
+        void free() {
+            pixels = null;
+            if (budget != null) {
+                budget.unpin(4L * width * height);
+                budget = null;
+            }
+        }
+    }
+
+    private static final class Placement {
+
+        final String source;
+        final int face, page, x, y, width, height;
+
+        Placement(String source, int face, int page, int x, int y, int width, int height) {
+            this.source = source;
+            this.face = face;
+            this.page = page;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package ca.cgjennings.seplugins.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes exported files so that a partially written file never appears
+ * under its final name. The data is written through a file channel to a
+ * temporary file in the same folder, which is then renamed over the
+ * destination. The temporary file is forced to the storage device before it
+ * is renamed, so that a crash can't leave the destination replaced by a
+ * file whose data was never written. If the destination already holds
+ * exactly the same bytes, it is left untouched, so re-exporting unchanged
+ * images does not rewrite them or change their modification time. A file
+ * known to hold the same bytes can be given as a link source, in which case
+ * the destination is made a hard link to it instead of a copy where the
+ * file system allows. Data that is too large to hold in memory can be
+ * streamed to the file with {@link #open}; the comparison is then made
+ * once it is written.
+ *
+ * <p>
+ * Data is copied to and from the channel through a small pool of
+ * fixed-size direct buffers. Writing a heap array to a channel directly
+ * would make the JDK allocate (and cache, per thread) a temporary direct
+ * buffer as large as the whole image.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class AtomicFileWriter {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_POOLED = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+
+    private AtomicFileWriter() {
+    }
+
+    /**
+     * Writes data to a file, replacing any existing file atomically where
+     * the file system allows it.
+     *
+     * @param target the file to write
+     * @param data the bytes to write
+     * @return true if the file was written, or false if it already
+     * contained the same bytes
+     * @throws IOException if the file cannot be written
+     */
+    static boolean write(File target, byte[] data) throws IOException {
+        return write(target, data, null);
+    }
+
+    /**
+     * Writes data to a file as for {@link #write(File, byte[])}, but if
+     * possible makes the file a hard link to a source file that is known to
+     * hold the same data.
+     *
+     * @param target the file to write
+     * @param data the bytes to write
+     * @param linkSource a file holding the same bytes, or null
+     * @return true if the file was written, or false if it already
+     * contained the same bytes
+     * @throws IOException if the file cannot be written
+     */
+    static boolean write(File target, byte[] data, File linkSource) throws IOException {
+        final ByteBuffer buff = borrow();
+        try {
+            final Path path = target.toPath();
+            if (isSame(path, data, buff)) {
+                return false;
+            }
+
+            final Path dir = path.toAbsolutePath().getParent();
+            if (linkSource != null && link(path, dir, linkSource.toPath())) {
+                return true;
+            }
+            // not Files.createTempFile, which would make the file private
+            Path temp;
+            FileChannel channel;
+            for (;;) {
+                temp = tempPath(dir, path, ".part");
+                try {
+                    channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                    break;
+                } catch (FileAlreadyExistsException faee) {
+                    // try another name
+                }
+            }
+            boolean done = false;
+            try {
+                try (FileChannel ch = channel) {
+                    for (int off = 0; off < data.length; off += buff.capacity()) {
+                        buff.clear();
+                        buff.put(data, off, Math.min(buff.capacity(), data.length - off));
+                        buff.flip();
+                        while (buff.hasRemaining()) {
+                            ch.write(buff);
+                        }
+                    }
+                    ch.force(true);
+                }
+                try {
+                    Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException amnse) {
+                    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+                }
+                done = true;
+            } finally {
+                if (!done) {
+                    Files.deleteIfExists(temp);
+                }
+            }
+            return true;
+        } finally {
+            giveBack(buff);
+        }
+    }
+
+    /**
+     * Opens a stream that writes to a temporary file in place of a target
+     * file. The target is only replaced when the stream is
+     * {@linkplain Output#commit committed}; closing the stream without
+     * committing discards what was written.
+     *
+     * @param target the file to write
+     * @return a stream for the new content
+     * @throws IOException if the temporary file cannot be created
+     */
+    static Output open(File target) throws IOException {
+        return new Output(target.toPath());
+    }
+
+    /**
+     * A stream of the content for a file, returned by {@link #open}.
+     */
+    static final class Output extends OutputStream {
+
+        private final Path path;
+        private final Path temp;
+        private final FileChannel channel;
+        private final ByteBuffer buff = borrow();
+        private long size;
+        private boolean closed;
+
+        private Output(Path path) throws IOException {
+            this.path = path;
+            final Path dir = path.toAbsolutePath().getParent();
+            Path t;
+            FileChannel ch;
+            for (;;) {
+                t = tempPath(dir, path, ".part");
+                try {
+                    ch = FileChannel.open(t, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                    break;
+                } catch (FileAlreadyExistsException faee) {
+                    // try another name
+                } catch (IOException | RuntimeException ex) {
+                    giveBack(buff);
+                    throw ex;
+                }
+            }
+            temp = t;
+            channel = ch;
+            buff.clear();
+        }
+
+        /**
+         * Returns the number of bytes written so far.
+         */
+        long size() {
+            return size;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buff.hasRemaining()) {
+                drain();
+            }
+            buff.put((byte) b);
+            ++size;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            size += len;
+            while (len > 0) {
+                if (!buff.hasRemaining()) {
+                    drain();
+                }
+                final int n = Math.min(len, buff.remaining());
+                buff.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void drain() throws IOException {
+            buff.flip();
+            while (buff.hasRemaining()) {
+                channel.write(buff);
+            }
+            buff.clear();
+        }
+
+        /**
+         * Replaces the target file with what was written, unless it already
+         * holds the same bytes, and closes the stream.
+         *
+         * @return true if the file was replaced, or false if it already
+         * contained the same bytes
+         * @throws IOException if the file cannot be replaced
+         */
+        boolean commit() throws IOException {
+            if (closed) {
+                throw new IOException("stream is closed");
+            }
+            boolean replaced = false;
+            try {
+                drain();
+                if (!isSame(path, temp, size)) {
+                    channel.force(true);
+                    channel.close();
+                    try {
+                        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    } catch (AtomicMoveNotSupportedException amnse) {
+                        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    replaced = true;
+                }
+            } finally {
+                close();
+            }
+            return replaced;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            } finally {
+                giveBack(buff);
+            }
+        }
+    }
+
+    /**
+     * Returns true if a file exists and has the same content as another
+     * file of the given size.
+     */
+    private static boolean isSame(Path path, Path other, long size) {
+        final ByteBuffer a = borrow();
+        final ByteBuffer b = borrow();
+        try (FileChannel ca = FileChannel.open(path, StandardOpenOption.READ);
+                FileChannel cb = FileChannel.open(other, StandardOpenOption.READ)) {
+            if (ca.size() != size) {
+                return false;
+            }
+            for (long off = 0L; off < size;) {
+                a.clear();
+                b.clear();
+                final int n = (int) Math.min(a.capacity(), size - off);
+                a.limit(n);
+                b.limit(n);
+                while (a.hasRemaining()) {
+                    if (ca.read(a) < 0) {
+                        return false;
+                    }
+                }
+                while (b.hasRemaining()) {
+                    if (cb.read(b) < 0) {
+                        return false;
+                    }
+                }
+                a.flip();
+                b.flip();
+                if (!a.equals(b)) {
+                    return false;
+                }
+                off += n;
+            }
+            return true;
+        } catch (IOException ex) {
+            // if it doesn't exist or can't be compared, replace it
+            return false;
+        } finally {
+            giveBack(a);
+            giveBack(b);
+        }
+    }
+
+    /**
+     * Replaces a file with a hard link to another file, returning false if
+     * the link could not be made.
+     */
+    private static boolean link(Path path, Path dir, Path source) {
+        final Path temp = tempPath(dir, path, ".link");
+        try {
+            Files.createLink(temp, source);
+            try {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException | SecurityException ex) {
+            // different file systems, or links are not supported
+            try {
+                Files.deleteIfExists(temp);
+            } catch (IOException ioex) {
+                // it will be cleaned up with the other temporary files
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns a name for a hidden temporary file next to a file.
+     */
+    private static Path tempPath(Path dir, Path path, String suffix) {
+        return dir.resolve("." + path.getFileName() + '.' + Long.toHexString(ThreadLocalRandom.current().nextLong()) + suffix);
+    }
+
+    /**
+     * Returns true if the file exists and contains exactly the given bytes.
+     */
+    private static boolean isSame(Path path, byte[] data, ByteBuffer buff) throws IOException {
+        if (!Files.isRegularFile(path) || Files.size(path) != data.length) {
+            return false;
+        }
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            int off = 0;
+            while (off < data.length) {
+                buff.clear();
+                buff.limit(Math.min(buff.capacity(), data.length - off));
+                while (buff.hasRemaining()) {
+                    if (ch.read(buff) < 0) {
+                        return false;
+                    }
+                }
+                buff.flip();
+                if (!buff.equals(ByteBuffer.wrap(data, off, buff.remaining()))) {
+                    return false;
+                }
+                off += buff.limit();
+            }
+            return true;
+        } catch (IOException ex) {
+            // if it can't be compared, write it
+            return false;
+        }
+    }
+
+    private static ByteBuffer borrow() {
+        final ByteBuffer b = pool.poll();
+        return b == null ? ByteBuffer.allocateDirect(BUFFER_SIZE) : b;
+    }
+
+    private static void giveBack(ByteBuffer b) {
+        // the size check is approximate, but only has to bound the pool
+        if (pool.size() < MAX_POOLED) {
+            pool.offer(b);
+        }
+    }
+}
@@ -0,0 +1,697 @@
+package ca.cgjennings.seplugins.export;
+
+import ca.cgjennings.apps.arkham.BusyDialog;
+import ca.cgjennings.apps.arkham.StrangeEons;
+import ca.cgjennings.apps.arkham.component.GameComponent;
+import ca.cgjennings.apps.arkham.sheet.Sheet;
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Exports a list of files using pools of worker threads. Exporting is split
+ * into a pipeline of stages, each with its own threads, connected by bounded
+ * queues: the {@linkplain Stage#RENDER render} stage loads each file and
+ * renders its sheets, passing each face on to be
+ * {@linkplain Stage#PROCESS processed}, {@linkplain Stage#ENCODE encoded},
+ * and {@linkplain Stage#WRITE written}. This allows, for example, one face to
+ * be encoded while the next is being rendered. All of the stages use the
+ * settings of a shared {@link Exporter}. The results are combined in the
+ * order that the files were listed, regardless of the order in which the
+ * workers finish.
+ *
+ * <p>
+ * Files are started largest first, so that an expensive file listed last
+ * does not keep one worker busy after the others have run out of work. The
+ * cost of each file is estimated from its {@linkplain #setHistory history}
+ * if one is set, or else from its size. When the faces are collected in a
+ * single archive, PDF document or atlas, files are started in list order
+ * instead, since their output must be assembled in that order.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class BatchExporter {
+
+    /**
+     * The stages of the export pipeline.
+     */
+    public enum Stage {
+        /**
+         * Loads components and renders their sheets.
+         */
+        RENDER,
+        /**
+         * Applies dimension limits and postprocessing scripts. Since a
+         * script can use the component, which is not thread safe, faces are
+         * processed in the render stage instead when a script is set, one at
+         * a time between the renders of their component's sheets.
+         */
+        PROCESS,
+        /**
+         * Encodes images in the output format.
+         */
+        ENCODE,
+        /**
+         * Writes encoded images to their destination.
+         */
+        WRITE
+    }
+
+    private final Exporter exporter;
+    private int workers = 0;
+    private final int[] stageThreads = new int[Stage.values().length];
+    private boolean retainResults = true;
+    private boolean largestFirst = true;
+    private ExportHistory history;
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a new batch exporter that exports files using the settings of
+     * the specified exporter.
+     *
+     * @param exporter the exporter to use for each file
+     */
+    public BatchExporter(Exporter exporter) {
+        this.exporter = Objects.requireNonNull(exporter, "exporter");
+    }
+
+    public Exporter getExporter() {
+        return exporter;
+    }
+
+    /**
+     * Returns the number of worker threads that will be used by stages that
+     * do not set their own thread count, or 0 if the number is chosen
+     * automatically.
+     *
+     * @return the worker count
+     */
+    public int getWorkerCount() {
+        return workers;
+    }
+
+    /**
+     * Sets the number of worker threads used by stages that do not set their
+     * own thread count. If 0 (or less), one worker is used for each available
+     * processor.
+     *
+     * @param workers the number of workers to use
+     */
+    public void setWorkerCount(int workers) {
+        if (workers < 0) {
+            workers = 0;
+        }
+        this.workers = workers;
+    }
+
+    /**
+     * Returns the number of threads assigned to a pipeline stage, or 0 if the
+     * stage uses the default.
+     *
+     * @param stage the stage to check
+     * @return the stage's thread count
+     */
+    public int getThreadCount(Stage stage) {
+        return stageThreads[stage.ordinal()];
+    }
+
+    /**
+     * Sets the number of threads assigned to a pipeline stage. If 0 (or
+     * less), the {@link Stage#WRITE} stage uses a single thread and the other
+     * stages use the {@linkplain #setWorkerCount worker count}.
+     *
+     * @param stage the stage to modify
+     * @param threads the number of threads for the stage
+     */
+    public void setThreadCount(Stage stage, int threads) {
+        stageThreads[stage.ordinal()] = Math.max(0, threads);
+    }
+
+    public boolean isResultsRetained() {
+        return retainResults;
+    }
+
+    /**
+     * Sets whether the results of each file are combined and returned from
+     * {@link #export}. If an {@link ExportListener} is used to track the
+     * export, this can be disabled so that the output files and errors are
+     * not all held in memory until the export ends.
+     *
+     * @param retain if true, the combined results are returned
+     */
+    public void setResultsRetained(boolean retain) {
+        this.retainResults = retain;
+    }
+
+    public boolean isLargestFirst() {
+        return largestFirst;
+    }
+
+    /**
+     * Sets whether files are started in order of their estimated cost,
+     * largest first, or in the order they are listed.
+     *
+     * @param largestFirst if true, expensive files are started first
+     */
+    public void setLargestFirst(boolean largestFirst) {
+        this.largestFirst = largestFirst;
+    }
+
+    public ExportHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Sets a history used to estimate the cost of each file from earlier
+     * exports. The cost of each file that is exported is recorded in the
+     * history. The caller is responsible for saving the history when the
+     * export is complete.
+     *
+     * @param history the history to use, or null to estimate costs from
+     * file sizes
+     */
+    public void setHistory(ExportHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Cancels the export in progress. Faces that are already being worked on
+     * by a stage will be finished, but will not be passed to the next stage.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private int effectiveThreadCount(Stage stage, int jobs) {
+        int n = stageThreads[stage.ordinal()];
+        if (n <= 0) {
+            if (stage == Stage.WRITE) {
+                n = 1;
+            } else {
+                n = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+            }
+        }
+        // there is never more than one render task per file
+        if (stage == Stage.RENDER) {
+            n = Math.min(n, jobs);
+        }
+        return Math.max(1, n);
+    }
+
+    /**
+     * Exports the listed files, blocking until all of them are complete or
+     * the export is cancelled. If called from a {@link BusyDialog} task,
+     * the dialog's progress and status are updated as files complete, and
+     * cancelling the dialog cancels the export.
+     *
+     * @param files the files to export
+     * @return the combined results of exporting each file (empty if
+     * results are not retained)
+     */
+    public Exporter.Results export(List<File> files) {
+        cancelled = false;
+        final Exporter.Results results = new Exporter.Results();
+        if (files.isEmpty()) {
+            return results;
+        }
+
+        final BusyDialog busy = BusyDialog.getCurrentDialog();
+        if (busy != null) {
+            busy.setProgressMaximum(files.size());
+        }
+
+        final ExportMetrics metrics = exporter.getMetrics();
+        if (metrics != null) {
+            metrics.start();
+        }
+
+        final ThreadPoolExecutor[] pools = new ThreadPoolExecutor[Stage.values().length];
+        for (Stage stage : Stage.values()) {
+            pools[stage.ordinal()] = createStagePool(stage, effectiveThreadCount(stage, files.size()));
+        }
+        try {
+            final List<FileJob> jobs = new ArrayList<>(files.size());
+            final ArchiveWriter archive = exporter.getArchive();
+            final int firstJob = archive == null ? 0 : archive.order().reserveJobs(files.size());
+            final PdfWriter pdf = exporter.getPdfDocument();
+            final int firstPdfJob = pdf == null ? 0 : pdf.order().reserveJobs(files.size());
+            final AtlasWriter atlas = exporter.getAtlas();
+            final int firstAtlasJob = atlas == null ? 0 : atlas.reserveJobs(files.size());
+            for (File f : files) {
+                jobs.add(new FileJob(f, pools, archive, firstJob + jobs.size(),
+                        pdf, firstPdfJob + jobs.size(), atlas, firstAtlasJob + jobs.size()));
+            }
+            final boolean ordered = archive != null || pdf != null || atlas != null;
+            for (FileJob job : ordered || !largestFirst ? jobs : byCost(jobs)) {
+                job.submit(Stage.RENDER, null, job::render);
+            }
+
+            for (int i = 0; i < jobs.size(); ++i) {
+                Exporter.Results r = await(jobs.get(i), busy);
+                if (r != null && retainResults) {
+                    results.add(r);
+                }
+                if (busy != null) {
+                    busy.setProgressCurrent(i + 1);
+                }
+            }
+        } finally {
+            for (ThreadPoolExecutor pool : pools) {
+                pool.shutdownNow();
+            }
+            if (metrics != null) {
+                metrics.stop();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the jobs sorted by estimated cost, largest first. Since the
+     * render queue is first in, first out, this is the order they start in.
+     */
+    private List<FileJob> byCost(List<FileJob> jobs) {
+        final double ppi = exporter.getResolution();
+        final Map<FileJob, Double> cost = new HashMap<>();
+        for (FileJob job : jobs) {
+            cost.put(job, history == null ? (double) job.file.length() : history.estimate(job.file, ppi));
+        }
+        final List<FileJob> sorted = new ArrayList<>(jobs);
+        sorted.sort((a, b) -> Double.compare(cost.get(b), cost.get(a)));
+        return sorted;
+    }
+
+    private Exporter.Results await(FileJob job, BusyDialog busy) {
+        for (;;) {
+            if (busy != null && busy.isCancelled()) {
+                cancel();
+            }
+            try {
+                Exporter.Results r = job.done.get(100, TimeUnit.MILLISECONDS);
+                if (busy != null) {
+                    BusyDialog.statusText(job.file.getName(), 50);
+                }
+                return r;
+            } catch (TimeoutException te) {
+                // check for cancellation and wait again
+            } catch (InterruptedException ie) {
+                cancel();
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException ee) {
+                // jobs always complete normally, so this should not happen
+                StrangeEons.log.log(Level.SEVERE, null, ee);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Tracks the faces of a single file as they move through the pipeline.
+     * The job is complete once every task submitted on its behalf has ended.
+     */
+    private final class FileJob {
+
+        final File file;
+        final CompletableFuture<Exporter.Results> done = new CompletableFuture<>();
+        private final ThreadPoolExecutor[] pools;
+        private final AtomicInteger pending = new AtomicInteger();
+        // the time spent working on the file by every stage, not counting
+        // waits for memory or queue space, and its size
+        private final AtomicLong work = new AtomicLong();
+        private int sheetCount;
+        private long pixels;
+        private final Exporter.Results results = new Exporter.Results();
+        // outputs are stored by face and profile index so that their order is
+        // stable; this is null unless the file was loaded and has sheets
+        private File[] outputs;
+        private int profileCount;
+        // if writing to an archive, the job's position in the archive
+        private final ArchiveWriter archive;
+        private final int archiveJob;
+        // if adding pages to a PDF document, the job's position in it
+        private final PdfWriter pdf;
+        private final int pdfJob;
+        // if placing faces in an atlas, the job's turn to reserve cells
+        private final AtlasWriter atlas;
+        private final int atlasJob;
+
+        FileJob(File file, ThreadPoolExecutor[] pools, ArchiveWriter archive, int archiveJob,
+                PdfWriter pdf, int pdfJob, AtlasWriter atlas, int atlasJob) {
+            this.file = file;
+            this.pools = pools;
+            this.archive = archive;
+            this.archiveJob = archiveJob;
+            this.pdf = pdf;
+            this.pdfJob = pdfJob;
+            this.atlas = atlas;
+            this.atlasJob = atlasJob;
+        }
+
+        boolean render() {
+            final long loadStart = System.nanoTime();
+            GameComponent gc = exporter.load(file, results);
+            Sheet[] sheets = gc == null ? null : exporter.createSheets(file, gc, results);
+            work.addAndGet(System.nanoTime() - loadStart);
+            if (sheets == null) {
+                return false;
+            }
+            synchronized (this) {
+                profileCount = atlas == null ? exporter.effectiveProfiles().size() : 1;
+                outputs = new File[sheets.length * profileCount];
+                if (history != null) {
+                    sheetCount = exporter.countIncluded(sheets);
+                    pixels = exporter.estimatePixels(sheets);
+                }
+            }
+            int position = atlas == null ? 0 : reserveCells(exporter.countIncluded(sheets), exporter.estimateFirstFace(sheets));
+            final String script = exporter.getPostprocessingCode();
+            final boolean scripted = script != null && !script.isEmpty();
+            for (int i = 0; i < sheets.length; ++i) {
+                final boolean included = !exporter.isExcluded(sheets[i]);
+                boolean passedOn = false;
+                try {
+                    final long reuseStart = System.nanoTime();
+                    final File[] reused = cancelled || atlas != null ? null : exporter.reuse(file, gc, sheets[i], i);
+                    if (reused != null) {
+                        work.addAndGet(System.nanoTime() - reuseStart);
+                        synchronized (this) {
+                            System.arraycopy(reused, 0, outputs, i * profileCount, reused.length);
+                        }
+                    } else if (!cancelled) {
+                        final PostprocessingEntry base = exporter.render(file, gc, sheets[i], i);
+                        if (base != null) {
+                            for (PostprocessingEntry entry : exporter.expand(base)) {
+                                // the script must not run on the component
+                                // while it renders another sheet
+                                if (scripted && !processNow(i, entry)) {
+                                    continue;
+                                }
+                                if (atlas == null) {
+                                    if (scripted) {
+                                        submit(Stage.ENCODE, entry, () -> encode(entry));
+                                    } else {
+                                        submit(Stage.PROCESS, entry, () -> process(entry));
+                                    }
+                                } else {
+                                    final int cell = position;
+                                    submit(Stage.PROCESS, entry, () -> place(entry, cell, !scripted));
+                                }
+                                passedOn = true;
+                            }
+                        }
+                    }
+                } catch (Exception ex) {
+                    error(i, ex);
+                } finally {
+                    sheets[i] = null;
+                    if (included) {
+                        if (atlas != null && !passedOn) {
+                            skipCell(i, position);
+                        }
+                        ++position;
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Reserves this job's cells in the atlas, waiting for the jobs before
+         * it to reserve theirs. This must be called exactly once, so that
+         * later jobs are not kept waiting; see {@link #end}.
+         */
+        private int reserveCells(int count, Dimension firstFace) {
+            synchronized (this) {
+                cellsReserved = true;
+            }
+            try {
+                return atlas.reserve(atlasJob, count, firstFace);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted while waiting for atlas");
+            }
+        }
+        private boolean cellsReserved;
+
+        private void skipCell(int index, int position) {
+            try {
+                atlas.skip(position);
+            } catch (IOException ex) {
+                error(index, ex);
+            }
+        }
+
+        /**
+         * Processes an entry on the render thread, returning false if it
+         * fails. The failure is reported and the entry is dropped.
+         */
+        private boolean processNow(int index, PostprocessingEntry entry) {
+            try {
+                exporter.process(entry);
+                return true;
+            } catch (Exception ex) {
+                error(index, ex);
+                entry.releaseReservation();
+                return false;
+            }
+        }
+
+        boolean place(PostprocessingEntry entry, int position, boolean process) throws IOException {
+            boolean placed = false;
+            try {
+                if (process) {
+                    exporter.process(entry);
+                }
+                final File page = exporter.place(entry, position);
+                placed = true;
+                synchronized (this) {
+                    outputs[entry.index] = page;
+                }
+            } finally {
+                if (!placed) {
+                    skipCell(entry.index, position);
+                }
+            }
+            return false;
+        }
+
+        boolean process(PostprocessingEntry entry) {
+            exporter.process(entry);
+            return submit(Stage.ENCODE, entry, () -> encode(entry));
+        }
+
+        boolean encode(PostprocessingEntry entry) throws IOException {
+            if (exporter.isStreamed(entry)) {
+                final File output = exporter.stream(entry);
+                synchronized (this) {
+                    outputs[entry.index * profileCount + entry.profileIndex] = output;
+                }
+                return false;
+            }
+            final byte[] image = exporter.encode(entry);
+            return image != null && submit(Stage.WRITE, entry, () -> write(entry, image));
+        }
+
+        boolean write(PostprocessingEntry entry, byte[] image) throws IOException {
+            final int slot;
+            synchronized (this) {
+                slot = entry.index * profileCount + entry.profileIndex;
+            }
+            final int job;
+            if (exporter.isDocumentPage(entry)) {
+                job = pdfJob;
+            } else {
+                job = archive == null ? -1 : archiveJob;
+            }
+            final File output = exporter.write(entry, image, job, slot);
+            synchronized (this) {
+                outputs[slot] = output;
+            }
+            return false;
+        }
+
+        /**
+         * Submits a task to run in the specified stage, blocking if the
+         * stage's queue is full. The entry is the face being worked on, or
+         * null for the file as a whole. Returns true if the task was
+         * accepted.
+         *
+         * <p>
+         * A task returns true if it passed its entry on to the next stage;
+         * otherwise the entry has reached the end of the pipeline and its
+         * memory reservation is released.
+         */
+        boolean submit(Stage stage, PostprocessingEntry entry, StageTask task) {
+            pending.incrementAndGet();
+            try {
+                pools[stage.ordinal()].execute(() -> {
+                    boolean passedOn = false;
+                    try {
+                        if (!cancelled) {
+                            passedOn = task.run();
+                        }
+                    } catch (Exception ex) {
+                        error(entry == null ? -1 : entry.index, ex);
+                    } finally {
+                        if (!passedOn && entry != null) {
+                            entry.releaseReservation();
+                            addWork(entry);
+                        }
+                        end();
+                    }
+                });
+                return true;
+            } catch (RejectedExecutionException rex) {
+                if (entry != null) {
+                    entry.releaseReservation();
+                }
+                end();
+                return false;
+            }
+        }
+
+        /**
+         * Adds the time that the stages spent on an entry that has left the
+         * pipeline to the file's work. The stage times do not include waits
+         * for memory or for room in the next stage's queue, so the cost
+         * recorded in the history does not depend on how busy the pipeline
+         * was. Every profile of a face shares its render, so that is
+         * counted once.
+         */
+        private void addWork(PostprocessingEntry entry) {
+            long nanos = 0L;
+            for (int s = 0; s < entry.stageNanos.length; ++s) {
+                if (entry.profileIndex == 0 || s != ExportMetrics.Stage.RENDER.ordinal()) {
+                    nanos += entry.stageNanos[s];
+                }
+            }
+            work.addAndGet(nanos);
+        }
+
+        private synchronized void error(int index, Exception ex) {
+            StrangeEons.log.log(Level.WARNING, "exception exporting " + file, ex);
+            exporter.fail(results, file, index, ex.getLocalizedMessage());
+        }
+
+        private void finish(OrderedOutput order, int job) {
+            try {
+                order.finish(job);
+            } catch (IOException ex) {
+                error(-1, ex);
+            }
+        }
+
+        private void end() {
+            if (pending.decrementAndGet() == 0) {
+                if (atlas != null) {
+                    // a job that was skipped or failed to load still
+                    // takes its turn, with no cells
+                    boolean reserve;
+                    synchronized (this) {
+                        reserve = !cellsReserved;
+                    }
+                    if (reserve) {
+                        try {
+                            reserveCells(0, null);
+                        } catch (CancellationException ce) {
+                            // the pools are being shut down
+                        }
+                    }
+                }
+                if (archive != null) {
+                    finish(archive.order(), archiveJob);
+                }
+                if (pdf != null) {
+                    finish(pdf.order(), pdfJob);
+                }
+                synchronized (this) {
+                    if (outputs != null) {
+                        for (File f : outputs) {
+                            if (f != null) {
+                                results.add(f);
+                            }
+                        }
+                        if (!cancelled) {
+                            exporter.completed(file, results);
+                            if (history != null) {
+                                history.record(file, sheetCount, pixels, exporter.getResolution(), work.get());
+                            }
+                        }
+                    }
+                }
+                done.complete(results);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface StageTask {
+
+        boolean run() throws Exception;
+    }
+
+    /**
+     * Creates the thread pool for a stage. Except for the render stage, whose
+     * tasks are queued up front, the pool has a bounded queue; when it is
+     * full, submitting a task blocks until there is room.
+     */
+    private static ThreadPoolExecutor createStagePool(Stage stage, int threads) {
+        return new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                stage == Stage.RENDER ? new LinkedBlockingQueue<>() : new ArrayBlockingQueue<>(threads * 2),
+                new WorkerFactory(stage),
+                (task, pool) -> {
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException();
+                    }
+                    try {
+                        pool.getQueue().put(task);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException(ie);
+                    }
+                }
+        );
+    }
+
+    private static final class WorkerFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerFactory(Stage stage) {
+            name = "Bulk export " + stage.name().toLowerCase(Locale.ROOT) + ' ';
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
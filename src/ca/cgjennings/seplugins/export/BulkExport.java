@@ -57,6 +57,9 @@ public class BulkExport extends AbstractPlugin {
             Actions.unregister(registered);
             registered = null;
         }
+        ImageWriterPool.getShared().clear();
+        RenderCache.getShared().clear();
+        ComponentCache.getShared().clear();
     }
 
     private TaskAction registered;
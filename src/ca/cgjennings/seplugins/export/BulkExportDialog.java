@@ -8,8 +8,8 @@ import ca.cgjennings.apps.arkham.dialog.ErrorDialog;
 import ca.cgjennings.apps.arkham.plugins.ScriptConsole;
 import ca.cgjennings.apps.arkham.plugins.ScriptMonkey;
 import ca.cgjennings.apps.arkham.project.Member;
+import ca.cgjennings.apps.arkham.project.Project;
 import ca.cgjennings.apps.arkham.project.ProjectUtilities;
-import ca.cgjennings.apps.arkham.project.ProjectView;
 import ca.cgjennings.apps.arkham.sheet.RenderTarget;
 import ca.cgjennings.apps.arkham.sheet.Sheet;
 import ca.cgjennings.apps.arkham.sheet.UndecoratedCardBack;
@@ -30,11 +30,13 @@ import java.io.File;
 import java.io.IOException;
 import java.text.NumberFormat;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.logging.Level;
+import javax.swing.JOptionPane;
 import static resources.Language.string;
 import resources.Settings;
 
@@ -46,6 +48,9 @@ import resources.Settings;
 public class BulkExportDialog extends javax.swing.JDialog implements AgnosticDialog {
 
     private static final int MAX_PPI = 3000;
+    private static final String MANIFEST_FILE = ".bulk-export-manifest";
+    private static final String HISTORY_FILE = ".bulk-export-history";
+    private static final String ARCHIVE_FILE = "bulk-export";
     private List<Member> exportList;
 
     /**
@@ -589,61 +594,211 @@ public class BulkExportDialog extends javax.swing.JDialog implements AgnosticDia
 
         dispose();
 
-        new BusyDialog(string("bx-l-progress"), () -> {
-            final HashSet<Member> parents = new HashSet<>();
-            final LinkedList<String> errors = new LinkedList<>();
-            final LinkedList<File> written = new LinkedList<>();
+        // when enabled, skip files that haven't changed since the last export
+        if (s.getYesNo("bulk-incremental", false)) {
+            final Project project = exportList.get(0).getProject();
+            if (project != null) {
+                ex.setManifest(new ExportManifest(new File(project.getFile(), MANIFEST_FILE)));
+            }
+        }
 
-            for (Member m : exportList) {
-                if (!"eon".equals(m.getExtension())) {
-                    continue;
-                }
+        // identical faces are encoded once and hard linked unless disabled
+        ex.setRenderCacheEnabled(s.getYesNo("bulk-render-cache", true));
+
+        // images of at least this many megapixels are encoded to their files
+        // a band at a time rather than in memory
+        ex.setStreamingThreshold(s.getInt("bulk-stream-size", 32) * 1_000_000L);
+
+        // a PNG compression level from 1 to 9 selects the fast PNG encoder
+        final int pngLevel = s.getInt("bulk-png-level", 0);
+        if (pngLevel >= 1 && pngLevel <= 9) {
+            PngEncoder.Filter filter = PngEncoder.Filter.ADAPTIVE;
+            try {
+                filter = PngEncoder.Filter.valueOf(s.get("bulk-png-filter", "adaptive").toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException iae) {
+                StrangeEons.log.log(Level.WARNING, "unknown PNG filter: {0}", s.get("bulk-png-filter"));
+            }
+            ex.setPngEncoder(new PngEncoder(pngLevel, filter, true));
+        }
+
+        // when set to tif or webp, choosing PNG writes lossless images in
+        // that format instead; TIFF images are LZW compressed unless the
+        // compression is set to none or deflate
+        final String losslessFormat = s.get("bulk-lossless-format", "").trim().toLowerCase(Locale.ROOT);
+        if (pngBtn.isSelected() && !losslessFormat.isEmpty()) {
+            try {
+                ex.setFormat(losslessFormat);
+                ex.setQuality(1d);
+            } catch (IllegalArgumentException iae) {
+                StrangeEons.log.log(Level.WARNING, "unsupported lossless format: {0}", losslessFormat);
+            }
+        }
+        try {
+            ex.setTiffEncoder(new TiffEncoder(
+                    TiffEncoder.Compression.valueOf(s.get("bulk-tiff-compression", "lzw").toUpperCase(Locale.ROOT)),
+                    true
+            ));
+        } catch (IllegalArgumentException iae) {
+            StrangeEons.log.log(Level.WARNING, "unknown TIFF compression: {0}", s.get("bulk-tiff-compression"));
+        }
+
+        final Member outputFolder = exportList.get(0).getParent();
+
+        // when set to a grid size such as 10x7, pack the faces into atlas
+        // pages next to the first file, with an index of where each face is;
+        // this is checked before any output is opened, since atlas pages are
+        // images and can't be combined with PDF output
+        AtlasWriter atlas = null;
+        final String atlasGrid = s.get("bulk-atlas-grid", "").trim();
+        if (!atlasGrid.isEmpty()) {
+            if (s.getYesNo("bulk-pdf", false)) {
+                ErrorDialog.displayError(string("bx-err-atlas-pdf"), null);
+                return;
+            }
+            final String[] grid = atlasGrid.toLowerCase(Locale.ROOT).split("x");
+            try {
+                atlas = new AtlasWriter(outputFolder.getFile(), ARCHIVE_FILE,
+                        Integer.parseInt(grid[0].trim()), Integer.parseInt(grid[grid.length - 1].trim()));
+                atlas.setPadding(s.getInt("bulk-atlas-padding", 0));
+                atlas.setMaximumSize(s.getInt("bulk-atlas-size", 8192));
+            } catch (IllegalArgumentException iae) {
+                ErrorDialog.displayError(string("bx-err-atlas-grid", atlasGrid), iae);
+                return;
+            }
+        }
+
+        // when set to an archive type (zip, tar, or tar.gz), collect the
+        // images in one archive next to the first file instead of writing
+        // separate files; this also saves synchronizing every folder
+        final String archiveType = s.get("bulk-archive", "").trim();
+        if (!archiveType.isEmpty()) {
+            try {
+                final ArchiveWriter archive = ArchiveWriter.create(new File(outputFolder.getFile(), ARCHIVE_FILE + '.' + archiveType));
+                archive.setBaseFolder(outputFolder.getFile());
+                ex.setArchive(archive);
+            } catch (IOException | IllegalArgumentException ex2) {
+                ErrorDialog.displayError(string("bx-err-archive"), ex2);
+                return;
+            }
+        }
+
+        // when set, write every face as a page of one PDF file next to the
+        // first file; pages use JPEG compression unless quality is 100%
+        if (s.getYesNo("bulk-pdf", false)) {
+            try {
+                ex.setFormat(Exporter.FORMAT_PDF);
+                ex.setPdfDocument(new PdfWriter(new File(outputFolder.getFile(), ARCHIVE_FILE + ".pdf")));
+            } catch (IOException ioex) {
+                ex.discardOutputs();
+                ErrorDialog.displayError(string("bx-err-pdf"), ioex);
+                return;
+            }
+        }
+
+        if (atlas != null) {
+            atlas.setFormat(ex.getFormat(), ex.getQuality());
+            ex.setAtlas(atlas);
+        }
 
-                BusyDialog.statusText(m.getName(), 50);
+        ex.addExportListener((evt) -> {
+            if (evt.getType() == ExportEvent.Type.WRITTEN) {
+                BusyDialog.statusText(evt.getOutputFile().getName(), 50);
+            } else if (evt.getType() == ExportEvent.Type.FAILED) {
+                StrangeEons.log.log(Level.WARNING, "{0}: {1}", new Object[]{evt.getSourceFile().getName(), evt.getMessage()});
+            }
+        });
+
+        // limit the memory used by images in flight; by default, half the heap
+        final long defaultBudget = Runtime.getRuntime().maxMemory() / 2L / (1024L * 1024L);
+        ex.setMemoryBudget(s.getInt("bulk-memory-budget", (int) defaultBudget) * 1024L * 1024L);
+
+        final ExportMetrics metrics = new ExportMetrics();
+        ex.setMetrics(metrics);
+
+        final BatchExporter bx = new BatchExporter(ex);
+        bx.setWorkerCount(s.getInt("bulk-threads", 0));
+
+        // start the largest files first, unless disabled; like the manifest,
+        // the history that refines the estimates is only kept in the project
+        // if it is asked for
+        bx.setLargestFirst(s.getYesNo("bulk-largest-first", true));
+        if (bx.isLargestFirst() && s.getYesNo("bulk-history", false)) {
+            final Project project = exportList.get(0).getProject();
+            if (project != null) {
+                bx.setHistory(new ExportHistory(new File(project.getFile(), HISTORY_FILE)));
+            }
+        }
+
+        // members are only used here, on the event dispatch thread; the
+        // folders that may gain files are listed now so that the export
+        // thread can tell which ones need to be synchronized afterwards
+        final HashSet<Member> parents = new HashSet<>();
+        final List<File> files = new ArrayList<>(exportList.size());
+        for (Member m : exportList) {
+            if ("eon".equals(m.getExtension())) {
+                files.add(m.getFile());
+                parents.add(m.getParent());
+            }
+        }
+        parents.add(outputFolder);
+        final ProjectRefresh refresh = ProjectRefresh.snapshot(parents);
+
+        new BusyDialog(string("bx-l-progress"), () -> {
+            final Exporter.Results results = bx.export(files);
+            if (ex.getArchive() != null) {
                 try {
-                    Exporter.Results results = ex.export(m.getFile());
-                    for (File f : results.outputFiles) {
-                        written.add(f);
-                    }
-                    for (String err : results.errors) {
-                        errors.add(err);
-                    }
-                    parents.add(m.getParent());
-
-                    if (BusyDialog.getCurrentDialog().isCancelled()) {
-                        for (File f : written) {
-                            f.delete();
-                        }
-                        written.clear();
-                        break;
-                    }
-                } catch (Exception t) {
-                    errors.add(t.getLocalizedMessage());
+                    ex.getArchive().close();
+                } catch (IOException ioex) {
+                    StrangeEons.log.log(Level.WARNING, "unable to complete export archive", ioex);
                 }
             }
-
-            // update project listings
-            EventQueue.invokeLater(() -> {
+            if (ex.getPdfDocument() != null) {
                 try {
-                    for (Member parent : parents) {
-                        parent.synchronize();
-                    }
-                    if (!written.isEmpty()) {
-                        final ProjectView v = StrangeEons.getWindow().getOpenProjectView();
-                        if (v != null) {
-                            v.clearSelection();
-                            for (File f : written) {
-                                Member m = v.getProject().findMember(f);
-                                if (m != null) {
-                                    v.addToSelection(m);
-                                }
-                            }
-                        }
-                    }
-                } catch (Throwable t) {
-                    StrangeEons.log.log(Level.SEVERE, "export cleanup exception", t);
+                    ex.getPdfDocument().close();
+                } catch (IOException ioex) {
+                    StrangeEons.log.log(Level.WARNING, "unable to complete export PDF", ioex);
+                }
+            }
+            if (ex.getAtlas() != null) {
+                try {
+                    ex.getAtlas().close();
+                } catch (IOException ioex) {
+                    StrangeEons.log.log(Level.WARNING, "unable to complete export atlas", ioex);
                 }
-            });
+            }
+            if (ex.getManifest() != null) {
+                try {
+                    ex.getManifest().save();
+                } catch (IOException ioex) {
+                    StrangeEons.log.log(Level.WARNING, "unable to save export manifest", ioex);
+                }
+            }
+            if (bx.getHistory() != null) {
+                try {
+                    bx.getHistory().save();
+                } catch (IOException ioex) {
+                    StrangeEons.log.log(Level.WARNING, "unable to save export history", ioex);
+                }
+            }
+            final List<File> written = results.outputFiles;
+            StrangeEons.log.log(Level.INFO, "bulk export complete:\n{0}", metrics.getSummary());
+            final String report = s.get("bulk-metrics-report", "");
+            if (!report.isEmpty()) {
+                try {
+                    metrics.writeReport(new File(report));
+                } catch (IOException ioex) {
+                    StrangeEons.log.log(Level.WARNING, "unable to write metrics report", ioex);
+                }
+            }
+            if (s.getYesNo("bulk-show-summary", false) && !bx.isCancelled()) {
+                EventQueue.invokeLater(() -> JOptionPane.showMessageDialog(
+                        StrangeEons.getWindow(), metrics.getSummary(), string("bx-l-summary"), JOptionPane.INFORMATION_MESSAGE
+                ));
+            }
+
+            // update project listings, synchronizing only folders with new
+            // files and selecting what was written in one step
+            refresh.refresh(written);
 
         }, BusyDialog.NO_CANCEL_ACTION);
     }
@@ -0,0 +1,579 @@
+package ca.cgjennings.seplugins.export;
+
+import ca.cgjennings.apps.arkham.project.ProjectUtilities;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs a bulk export without user interaction, for use by build servers.
+ * The arguments are options followed by one or more component files or
+ * directories; directories are searched recursively for <code>.eon</code>
+ * files. The export runs on a {@link BatchExporter}, and when it finishes a
+ * JSON summary of the results is written to standard output (or the file
+ * named with <code>--summary</code>).
+ *
+ * <p>
+ * The exporter needs the Strange Eons runtime to load and render components,
+ * so this must be run in a JVM where Strange Eons has been started, for
+ * example by calling {@link #run} from a script passed to Strange Eons on
+ * the command line.
+ *
+ * <pre>
+ * Options:
+ *   --format fmt         png (default), jpg, jp2, bmp, gif, tif, webp, or pdf;
+ *                        webp needs a WebP image writer plug-in, and is
+ *                        lossless at quality 100
+ *   --quality n          image quality from 0 to 100 (default 100)
+ *   --progressive        use progressive scan if supported
+ *   --png-level n        encode PNG images with the fast encoder at
+ *                        compression level n, from 1 (fastest) to 9 (smallest)
+ *   --png-filter f       PNG scanline filter for the fast encoder: none, sub,
+ *                        up, average, paeth, or adaptive (default)
+ *   --tiff-compression c TIFF compression: none, lzw (default), or deflate
+ *   --ppi n              export resolution (default 300)
+ *   --max-size n         limit image width and height to n pixels
+ *   --exclude-simple     skip simple card back faces
+ *   --bleed              add a bleed margin
+ *   --script file        postprocess each image using a script
+ *   --threads n          number of worker threads (default: one per CPU)
+ *   --memory n           image memory budget in MiB (default: half the heap)
+ *   --manifest file      skip files that are unchanged since the last export
+ *   --history file       estimate the cost of each file from earlier exports
+ *                        recorded in a file, and record this export there
+ *   --in-order           start files in the order listed instead of
+ *                        largest first
+ *   --no-render-cache    encode every face, even if an identical face was
+ *                        already encoded
+ *   --stream-size n      encode images of at least n megapixels straight to
+ *                        their files (default 32; 0 to never stream)
+ *   --archive file       write all images into a .zip, .tar or .tar.gz archive
+ *   --pdf file           write the faces as the pages of a single PDF file;
+ *                        implies --format pdf unless profiles are given
+ *   --atlas base,c,r[,padding[,max]]
+ *                        pack faces into pages of c columns and r rows, at
+ *                        most max pixels wide and high (default 8192), named
+ *                        base-1, base-2, ..., with an index in base.json
+ *   --summary file       write the JSON summary to a file
+ *   --processes n        share the files among n worker processes; cannot
+ *                        be combined with --archive, --pdf, --atlas,
+ *                        --manifest or --metrics
+ *   --worker-command cmd the command that starts a worker process: Strange
+ *                        Eons running a script that calls runWorker(); it
+ *                        is split at spaces
+ *   --retries n          times to retry a file whose worker process exits
+ *                        (default 2)
+ *   --worker-timeout n   stop and restart a worker process that sends
+ *                        nothing for n seconds (default 300; 0 for none)
+ *   --metrics file       write a JSON report of per-stage timings to a file
+ *   --profile f,q,n,s[,progressive]
+ *                        add an output profile with format f, quality q
+ *                        (0-100), size limit n (0 for none) and file name
+ *                        suffix s; may be repeated to write several images
+ *                        from each rendered face
+ * </pre>
+ *
+ * <p>
+ * With <code>--processes</code>, this process only coordinates the export;
+ * the files are exported by worker processes (see
+ * {@link ExportCoordinator}). Each worker runs {@link #runWorker}, which
+ * reads its options and files from standard input. The other options are
+ * passed on to the workers, except that each worker is given an equal share
+ * of the processors unless <code>--threads</code> is set.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class CommandLineExporter {
+
+    /**
+     * Exit status when every file was exported successfully.
+     */
+    public static final int EXIT_OK = 0;
+    /**
+     * Exit status when one or more files or faces could not be exported.
+     */
+    public static final int EXIT_ERRORS = 1;
+    /**
+     * Exit status when the arguments are invalid.
+     */
+    public static final int EXIT_USAGE = 2;
+
+    private CommandLineExporter() {
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Runs an export using the specified command line arguments and returns
+     * the exit status.
+     *
+     * @param args the command line arguments
+     * @return the exit status
+     */
+    public static int run(String... args) {
+        return run(args, null, null);
+    }
+
+    /**
+     * Runs a worker process for a distributed export, returning the exit
+     * status once the coordinator has no more files to export. The options
+     * and files are read from standard input, and progress is reported on
+     * standard output; anything else written to standard output is
+     * redirected to standard error.
+     *
+     * @return the exit status
+     * @see ExportCoordinator
+     */
+    public static int runWorker() {
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8));
+        System.setOut(System.err);
+        final BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        try {
+            return run(ExportWorker.readOptions(in), in, out);
+        } catch (IOException ioex) {
+            System.err.println(ioex.getLocalizedMessage());
+            return EXIT_USAGE;
+        }
+    }
+
+    /**
+     * Runs an export. If the input and output are not null, this is a
+     * worker process and files are read from the input instead of the
+     * arguments.
+     */
+    private static int run(String[] args, BufferedReader workerIn, PrintWriter workerOut) {
+        final boolean worker = workerIn != null;
+        final Exporter ex = new Exporter();
+        final BatchExporter bx = new BatchExporter(ex);
+        final List<File> files = new ArrayList<>();
+        final List<OutputProfile> profiles = new ArrayList<>();
+        File summaryFile = null;
+        File metricsFile = null;
+        File archiveFile = null;
+        File pdfFile = null;
+        String atlasSpec = null;
+        int pngLevel = 0;
+        PngEncoder.Filter pngFilter = null;
+        int processes = 0;
+        int retries = 2;
+        int workerTimeout = 300;
+        String workerCommand = null;
+        boolean threadsSet = false;
+        // the options passed on to worker processes
+        final List<String> workerOptions = new ArrayList<>();
+        final ExportMetrics metrics = new ExportMetrics();
+        ex.setMetrics(metrics);
+        ex.setMemoryBudget(Runtime.getRuntime().maxMemory() / 2L);
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                final String arg = args[i];
+                if (!arg.startsWith("--")) {
+                    collect(new File(arg), files);
+                    continue;
+                }
+                final int start = i;
+                boolean forward = true;
+                switch (arg) {
+                    case "--format":
+                        ex.setFormat(value(args, ++i, arg).toLowerCase(Locale.ROOT));
+                        break;
+                    case "--quality":
+                        ex.setQuality(Integer.parseInt(value(args, ++i, arg)) / 100d);
+                        break;
+                    case "--progressive":
+                        ex.setProgressive(true);
+                        break;
+                    case "--png-level":
+                        pngLevel = Integer.parseInt(value(args, ++i, arg));
+                        break;
+                    case "--png-filter":
+                        pngFilter = PngEncoder.Filter.valueOf(value(args, ++i, arg).toUpperCase(Locale.ROOT));
+                        break;
+                    case "--tiff-compression":
+                        ex.setTiffEncoder(new TiffEncoder(
+                                TiffEncoder.Compression.valueOf(value(args, ++i, arg).toUpperCase(Locale.ROOT)),
+                                true
+                        ));
+                        break;
+                    case "--ppi":
+                        ex.setResolution(Double.parseDouble(value(args, ++i, arg)));
+                        break;
+                    case "--max-size":
+                        ex.setDimensionLimit(Integer.parseInt(value(args, ++i, arg)));
+                        break;
+                    case "--exclude-simple":
+                        ex.setExcludeSimpleFaces(true);
+                        break;
+                    case "--bleed":
+                        ex.setBleedMarginEnabled(true);
+                        break;
+                    case "--script": {
+                        final String script = value(args, ++i, arg);
+                        ex.setPostprocessingCode(ProjectUtilities.getFileAsString(new File(script), ProjectUtilities.ENC_SCRIPT).trim());
+                        ex.setPostprocessingCodeFile(script);
+                        break;
+                    }
+                    case "--threads":
+                        bx.setWorkerCount(Integer.parseInt(value(args, ++i, arg)));
+                        threadsSet = true;
+                        break;
+                    case "--memory":
+                        ex.setMemoryBudget(Long.parseLong(value(args, ++i, arg)) * 1024L * 1024L);
+                        break;
+                    case "--manifest":
+                        ex.setManifest(new ExportManifest(new File(value(args, ++i, arg))));
+                        break;
+                    case "--history":
+                        bx.setHistory(new ExportHistory(new File(value(args, ++i, arg))));
+                        forward = false;
+                        break;
+                    case "--in-order":
+                        bx.setLargestFirst(false);
+                        forward = false;
+                        break;
+                    case "--stream-size":
+                        ex.setStreamingThreshold(Long.parseLong(value(args, ++i, arg)) * 1_000_000L);
+                        break;
+                    case "--no-render-cache":
+                        ex.setRenderCacheEnabled(false);
+                        break;
+                    case "--archive":
+                        archiveFile = new File(value(args, ++i, arg));
+                        break;
+                    case "--pdf":
+                        pdfFile = new File(value(args, ++i, arg));
+                        break;
+                    case "--atlas":
+                        atlasSpec = value(args, ++i, arg);
+                        break;
+                    case "--profile":
+                        profiles.add(parseProfile(value(args, ++i, arg)));
+                        break;
+                    case "--metrics":
+                        metricsFile = new File(value(args, ++i, arg));
+                        break;
+                    case "--summary":
+                        summaryFile = new File(value(args, ++i, arg));
+                        forward = false;
+                        break;
+                    case "--processes":
+                        processes = Integer.parseInt(value(args, ++i, arg));
+                        forward = false;
+                        break;
+                    case "--worker-command":
+                        workerCommand = value(args, ++i, arg);
+                        forward = false;
+                        break;
+                    case "--retries":
+                        retries = Integer.parseInt(value(args, ++i, arg));
+                        forward = false;
+                        break;
+                    case "--worker-timeout":
+                        workerTimeout = Integer.parseInt(value(args, ++i, arg));
+                        forward = false;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown option: " + arg);
+                }
+                if (forward) {
+                    workerOptions.addAll(Arrays.asList(args).subList(start, i + 1));
+                }
+            }
+            if (worker ? !files.isEmpty() : files.isEmpty()) {
+                throw new IllegalArgumentException(worker ? "workers read files from standard input" : "no component files to export");
+            }
+            if (processes > 0) {
+                if (worker) {
+                    throw new IllegalArgumentException("workers cannot start workers");
+                }
+                if (workerCommand == null || workerCommand.trim().isEmpty()) {
+                    throw new IllegalArgumentException("--processes requires --worker-command");
+                }
+                if (archiveFile != null || pdfFile != null || atlasSpec != null || ex.getManifest() != null || metricsFile != null) {
+                    throw new IllegalArgumentException("--processes cannot be combined with --archive, --pdf, --atlas, --manifest or --metrics");
+                }
+                if (!threadsSet) {
+                    workerOptions.add("--threads");
+                    workerOptions.add(String.valueOf(Math.max(1, Runtime.getRuntime().availableProcessors() / processes)));
+                }
+            }
+            if (pdfFile != null && profiles.isEmpty()) {
+                ex.setFormat(Exporter.FORMAT_PDF);
+            }
+            if (atlasSpec != null) {
+                ex.setAtlas(parseAtlas(atlasSpec, ex));
+            }
+            ex.setOutputProfiles(profiles);
+            if (pngLevel != 0 || pngFilter != null) {
+                ex.setPngEncoder(new PngEncoder(
+                        pngLevel == 0 ? 6 : pngLevel,
+                        pngFilter == null ? PngEncoder.Filter.ADAPTIVE : pngFilter,
+                        true
+                ));
+            }
+            // the outputs are opened last, once every option is known to be
+            // valid, so that a bad option does not leave a partial file
+            if (archiveFile != null) {
+                final ArchiveWriter archive = ArchiveWriter.create(archiveFile);
+                archive.setBaseFolder(new File("").getAbsoluteFile());
+                ex.setArchive(archive);
+            }
+            if (pdfFile != null) {
+                ex.setPdfDocument(new PdfWriter(pdfFile));
+            }
+        } catch (IllegalArgumentException | IOException bad) {
+            ex.discardOutputs();
+            System.err.println(bad.getLocalizedMessage());
+            return EXIT_USAGE;
+        }
+
+        if (worker) {
+            bx.setResultsRetained(false);
+            try {
+                ExportWorker.serve(bx, workerIn, workerOut);
+            } catch (IOException ioex) {
+                System.err.println(ioex.getLocalizedMessage());
+                return EXIT_ERRORS;
+            }
+            System.err.print(metrics.getSummary());
+            return EXIT_OK;
+        }
+
+        final List<ExportEvent> failures = Collections.synchronizedList(new ArrayList<>());
+        ex.addExportListener((evt) -> {
+            if (evt.getType() == ExportEvent.Type.FAILED) {
+                failures.add(evt);
+                System.err.println(evt.getSourceFile() + ": " + evt.getMessage());
+            }
+        });
+        bx.setResultsRetained(false);
+        ExportSummary summary = new ExportSummary(ex);
+
+        final long start = System.nanoTime();
+        if (processes > 0) {
+            final ExportCoordinator coordinator = new ExportCoordinator(
+                    ex, Arrays.asList(workerCommand.trim().split("\\s+")), workerOptions
+            );
+            coordinator.setProcessCount(processes);
+            coordinator.setRetryCount(retries);
+            coordinator.setTimeout(workerTimeout);
+            coordinator.setHistory(bx.getHistory());
+            coordinator.setLargestFirst(bx.isLargestFirst());
+            coordinator.export(files);
+        } else {
+            bx.export(files);
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        if (ex.getArchive() != null) {
+            try {
+                ex.getArchive().close();
+            } catch (IOException ioex) {
+                failures.add(new ExportEvent(ex, ExportEvent.Type.FAILED, ex.getArchive().getFile(), -1, 0L, null, 0L, 0, 0, ioex.getLocalizedMessage(), null));
+            }
+        }
+        if (ex.getPdfDocument() != null) {
+            try {
+                ex.getPdfDocument().close();
+            } catch (IOException ioex) {
+                failures.add(new ExportEvent(ex, ExportEvent.Type.FAILED, ex.getPdfDocument().getFile(), -1, 0L, null, 0L, 0, 0, ioex.getLocalizedMessage(), null));
+            }
+        }
+        if (ex.getAtlas() != null) {
+            try {
+                ex.getAtlas().close();
+            } catch (IOException ioex) {
+                failures.add(new ExportEvent(ex, ExportEvent.Type.FAILED, new File(atlasSpec.split(",")[0]), -1, 0L, null, 0L, 0, 0, ioex.getLocalizedMessage(), null));
+            }
+        }
+
+        if (ex.getManifest() != null) {
+            try {
+                ex.getManifest().save();
+            } catch (IOException ioex) {
+                failures.add(new ExportEvent(ex, ExportEvent.Type.FAILED, ex.getManifest().getFile(), -1, 0L, null, 0L, 0, 0, ioex.getLocalizedMessage(), null));
+            }
+        }
+        if (bx.getHistory() != null) {
+            try {
+                bx.getHistory().save();
+            } catch (IOException ioex) {
+                failures.add(new ExportEvent(ex, ExportEvent.Type.FAILED, bx.getHistory().getFile(), -1, 0L, null, 0L, 0, 0, ioex.getLocalizedMessage(), null));
+            }
+        }
+
+        if (processes == 0) {
+            // each worker reports its own metrics
+            System.err.print(metrics.getSummary());
+        }
+        try {
+            if (metricsFile != null) {
+                metrics.writeReport(metricsFile);
+            }
+            if (summaryFile == null) {
+                PrintWriter w = new PrintWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+                summary.write(w, files.size(), elapsed, failures);
+                w.flush();
+            } else {
+                try (Writer w = new OutputStreamWriter(new FileOutputStream(summaryFile), StandardCharsets.UTF_8)) {
+                    summary.write(w, files.size(), elapsed, failures);
+                }
+            }
+        } catch (IOException ioex) {
+            System.err.println(ioex.getLocalizedMessage());
+            return EXIT_ERRORS;
+        }
+        return failures.isEmpty() ? EXIT_OK : EXIT_ERRORS;
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static OutputProfile parseProfile(String spec) {
+        final String[] fields = spec.split(",", -1);
+        if (fields.length < 4 || fields.length > 5 || (fields.length == 5 && !fields[4].equals("progressive"))) {
+            throw new IllegalArgumentException("invalid profile: " + spec);
+        }
+        return new OutputProfile(
+                fields[0].toLowerCase(Locale.ROOT),
+                Integer.parseInt(fields[1]) / 100d,
+                Integer.parseInt(fields[2]),
+                fields.length == 5,
+                fields[3]
+        );
+    }
+
+    private static AtlasWriter parseAtlas(String spec, Exporter ex) {
+        final String[] fields = spec.split(",", -1);
+        if (fields.length < 3 || fields.length > 5 || fields[0].isEmpty()) {
+            throw new IllegalArgumentException("invalid atlas: " + spec);
+        }
+        final File base = new File(fields[0]).getAbsoluteFile();
+        final AtlasWriter atlas = new AtlasWriter(
+                base.getParentFile(), base.getName(),
+                Integer.parseInt(fields[1]), Integer.parseInt(fields[2])
+        );
+        if (fields.length > 3) {
+            atlas.setPadding(Integer.parseInt(fields[3]));
+        }
+        if (fields.length > 4) {
+            atlas.setMaximumSize(Integer.parseInt(fields[4]));
+        }
+        atlas.setFormat(ex.getFormat(), ex.getQuality());
+        return atlas;
+    }
+
+    private static void collect(File f, List<File> files) {
+        if (f.isDirectory()) {
+            File[] kids = f.listFiles();
+            if (kids != null) {
+                Arrays.sort(kids);
+                for (File kid : kids) {
+                    collect(kid, files);
+                }
+            }
+        } else if (ProjectUtilities.matchExtension(f, "eon")) {
+            files.add(f);
+        } else if (!f.exists()) {
+            throw new IllegalArgumentException("file not found: " + f);
+        }
+    }
+
+    /**
+     * Counts written faces and bytes as they are reported, and writes the
+     * summary as JSON.
+     */
+    private static final class ExportSummary implements ExportListener {
+
+        private long written, bytes;
+
+        ExportSummary(Exporter ex) {
+            ex.addExportListener(this);
+        }
+
+        @Override
+        public synchronized void exportProgressed(ExportEvent e) {
+            if (e.getType() == ExportEvent.Type.WRITTEN) {
+                ++written;
+                bytes += e.getBytes();
+            }
+        }
+
+        synchronized void write(Writer w, int fileCount, long nanos, List<ExportEvent> failures) throws IOException {
+            w.write("{\n");
+            w.write("  \"status\": \"" + (failures.isEmpty() ? "ok" : "error") + "\",\n");
+            w.write("  \"files\": " + fileCount + ",\n");
+            w.write("  \"written\": " + written + ",\n");
+            w.write("  \"bytes\": " + bytes + ",\n");
+            w.write("  \"elapsedMillis\": " + (nanos / 1_000_000L) + ",\n");
+            w.write("  \"errors\": [");
+            synchronized (failures) {
+                for (int i = 0; i < failures.size(); ++i) {
+                    final ExportEvent e = failures.get(i);
+                    w.write(i == 0 ? "\n" : ",\n");
+                    w.write("    {\"file\": " + quote(e.getSourceFile().getPath())
+                            + ", \"face\": " + e.getFaceIndex()
+                            + ", \"message\": " + quote(e.getMessage()) + "}");
+                }
+                w.write(failures.isEmpty() ? "]\n" : "\n  ]\n");
+            }
+            w.write("}\n");
+        }
+    }
+
+    /**
+     * Returns a string as a quoted JSON string literal.
+     */
+    static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        StringBuilder b = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        b.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        b.append(c);
+                    }
+            }
+        }
+        return b.append('"').toString();
+    }
+}
@@ -0,0 +1,138 @@
+package ca.cgjennings.seplugins.export;
+
+import ca.cgjennings.apps.arkham.component.ComponentMetadata;
+import ca.cgjennings.apps.arkham.component.GameComponent;
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import resources.ResourceKit;
+
+/**
+ * A bounded cache of the components loaded for export, so that exporting
+ * the same files again during a session does not have to read and
+ * deserialize them again. Entries are keyed by file path and are only used
+ * if the file's modification time and size have not changed. The cache also
+ * remembers files, such as decks, that cannot be exported, so that they are
+ * not checked again. When the cache is full, the least recently used entry
+ * is discarded.
+ *
+ * <p>
+ * The same component instance is given to every export that uses the
+ * cache, so it must not be changed. For that reason the exporter does not
+ * use the cache while a postprocessing script, which can change the
+ * component, is set.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class ComponentCache {
+
+    private static final int DEFAULT_CAPACITY = 32;
+    private static final ComponentCache shared = new ComponentCache(DEFAULT_CAPACITY);
+
+    /**
+     * Returns the cache shared by all exporters.
+     *
+     * @return the shared cache
+     */
+    static ComponentCache getShared() {
+        return shared;
+    }
+
+    private final Map<String, CachedComponent> entries;
+
+    ComponentCache(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        entries = new LinkedHashMap<String, CachedComponent>(capacity * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedComponent> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Loads the component stored in a file, or returns the cached copy if
+     * the file has not changed. Returns null if the file could not be read.
+     * If the file is not a component that can be exported, such as a deck,
+     * the returned entry has a null component.
+     *
+     * @param file the file to load
+     * @return an entry for the file, or null
+     */
+    CachedComponent load(File file) {
+        final String key = file.getAbsolutePath();
+        final long modified = file.lastModified();
+        final long length = file.length();
+
+        synchronized (this) {
+            CachedComponent e = entries.get(key);
+            if (e != null) {
+                if (e.modified == modified && e.length == length) {
+                    return e;
+                }
+                entries.remove(key);
+            }
+        }
+
+        final CachedComponent e = read(file);
+        // don't cache failures; the file may be fixed or the plug-in
+        // it needs may be installed before the next attempt
+        if (e != null) {
+            synchronized (this) {
+                entries.put(key, e);
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Reads a component from a file without using a cache. The return value
+     * is as for {@link #load}.
+     *
+     * @param file the file to read
+     * @return an entry for the file, or null
+     */
+    static CachedComponent read(File file) {
+        final long modified = file.lastModified();
+        final long length = file.length();
+
+        // check the metadata first: it only reads the file header, so it is
+        // much cheaper than loading a deck just to skip it; this does mean
+        // that an exportable file is opened twice, once for the header and
+        // once to load it, as neither API accepts an already open stream;
+        // the header is small and will still be in the OS file cache, so
+        // this is accepted as the price of not deserializing decks
+        ComponentMetadata md = new ComponentMetadata(file);
+        if (md.getMetadataVersion() >= 1 && !md.isDeckLayoutSupported()) {
+            return new CachedComponent(modified, length, null);
+        }
+        GameComponent gc = ResourceKit.getGameComponentFromFile(file, false);
+        return gc == null ? null : new CachedComponent(modified, length, gc);
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    static final class CachedComponent {
+
+        private final long modified, length;
+        /**
+         * The loaded component, or null if the file can't be exported.
+         */
+        final GameComponent gc;
+
+        CachedComponent(long modified, long length, GameComponent gc) {
+            this.modified = modified;
+            this.length = length;
+            this.gc = gc;
+        }
+    }
+}
@@ -0,0 +1,360 @@
+package ca.cgjennings.seplugins.export;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Reduces images to fit a dimension limit. The image is first halved with a
+ * box filter until it is less than twice the target size, which is fast and
+ * removes most of the detail that would otherwise alias. An odd row or
+ * column is shared out among its neighbours rather than dropped. A
+ * separable Lanczos filter (with three lobes) then brings it to the exact
+ * size. All passes work directly on packed, premultiplied ARGB pixels and
+ * are split into bands of rows that are processed in parallel.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class Downsampler {
+
+    private static final int BAND = 32;
+    private static final double LOBES = 3d;
+
+    private Downsampler() {
+    }
+
+    /**
+     * Returns a copy of an image scaled to the given size. The result is of
+     * type {@code TYPE_INT_ARGB}, or {@code TYPE_INT_RGB} if the source
+     * image is opaque.
+     *
+     * @param source the image to scale
+     * @param width the width of the scaled image
+     * @param height the height of the scaled image
+     * @return the scaled image
+     */
+    static BufferedImage resize(BufferedImage source, int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("invalid size: " + width + 'x' + height);
+        }
+        final boolean alpha = source.getColorModel().hasAlpha();
+        int w = source.getWidth();
+        int h = source.getHeight();
+        int[] pixels = premultipliedPixels(source, alpha);
+
+        while (w >= width * 2 && h >= height * 2) {
+            pixels = halve(pixels, w, h);
+            w /= 2;
+            h /= 2;
+        }
+        if (w != width) {
+            pixels = horizontal(pixels, w, h, width);
+            w = width;
+        }
+        if (h != height) {
+            pixels = vertical(pixels, w, h, height);
+        }
+
+        final BufferedImage dest = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        final int[] out = ((DataBufferInt) dest.getRaster().getDataBuffer()).getData();
+        final int[] in = pixels;
+        if (alpha) {
+            bands(height).forEach(b -> {
+                final int end = Math.min(height, b + BAND) * width;
+                for (int i = b * width; i < end; ++i) {
+                    out[i] = unpremultiply(in[i]);
+                }
+            });
+        } else {
+            System.arraycopy(in, 0, out, 0, width * height);
+        }
+        return dest;
+    }
+
+    /**
+     * Returns the pixels of an image as premultiplied ARGB values in row
+     * order.
+     */
+    private static int[] premultipliedPixels(BufferedImage bi, boolean alpha) {
+        final int w = bi.getWidth();
+        final int h = bi.getHeight();
+        final int[] px = new int[w * h];
+        final int type = bi.getType();
+        final boolean direct = type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB;
+        bands(h).forEach(b -> {
+            final int end = Math.min(h, b + BAND);
+            if (direct) {
+                final WritableRaster r = bi.getRaster();
+                final DataBufferInt db = (DataBufferInt) r.getDataBuffer();
+                final int stride = ((SinglePixelPackedSampleModel) r.getSampleModel()).getScanlineStride();
+                final int[] data = db.getData();
+                for (int y = b; y < end; ++y) {
+                    final int offset = db.getOffset() - r.getSampleModelTranslateX()
+                            + (y - r.getSampleModelTranslateY()) * stride;
+                    System.arraycopy(data, offset, px, y * w, w);
+                }
+            } else {
+                bi.getRGB(0, b, w, end - b, px, b * w, w);
+            }
+            final int from = b * w;
+            final int to = end * w;
+            for (int i = from; i < to; ++i) {
+                px[i] = alpha ? premultiply(px[i]) : px[i] | 0xff000000;
+            }
+        });
+        return px;
+    }
+
+    /**
+     * Halves an image in both dimensions by averaging each 2&times;2 block.
+     * If either dimension is odd, the image is halved by
+     * {@link #halveWeighted} instead, so that the last row or column is not
+     * dropped.
+     */
+    private static int[] halve(int[] src, int w, int h) {
+        if ((w & 1) != 0 || (h & 1) != 0) {
+            return halveWeighted(src, w, h);
+        }
+        final int dw = w / 2;
+        final int dh = h / 2;
+        final int[] dst = new int[dw * dh];
+        bands(dh).forEach(b -> {
+            final int end = Math.min(dh, b + BAND);
+            for (int y = b; y < end; ++y) {
+                int i0 = (y * 2) * w;
+                int i1 = i0 + w;
+                int o = y * dw;
+                for (int x = 0; x < dw; ++x, i0 += 2, i1 += 2) {
+                    final int p0 = src[i0], p1 = src[i0 + 1], p2 = src[i1], p3 = src[i1 + 1];
+                    final int a = ((p0 >>> 24) + (p1 >>> 24) + (p2 >>> 24) + (p3 >>> 24) + 2) >> 2;
+                    final int r = (((p0 >> 16) & 0xff) + ((p1 >> 16) & 0xff) + ((p2 >> 16) & 0xff) + ((p3 >> 16) & 0xff) + 2) >> 2;
+                    final int g = (((p0 >> 8) & 0xff) + ((p1 >> 8) & 0xff) + ((p2 >> 8) & 0xff) + ((p3 >> 8) & 0xff) + 2) >> 2;
+                    final int bl = ((p0 & 0xff) + (p1 & 0xff) + (p2 & 0xff) + (p3 & 0xff) + 2) >> 2;
+                    dst[o++] = (a << 24) | (r << 16) | (g << 8) | bl;
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Halves an image with a box filter that weights each source sample by
+     * how much of it falls under the output sample. Along an even
+     * dimension this is the same as averaging pairs. An odd dimension of
+     * 2n+1 samples is reduced to n, each covering 2+1/n samples: output
+     * sample x takes samples 2x, 2x+1 and 2x+2 with weights n-x, n and x+1
+     * (out of 2n+1), so the whole image contributes evenly.
+     */
+    private static int[] halveWeighted(int[] src, int w, int h) {
+        final int dw = w / 2;
+        final int dh = h / 2;
+        final int[][] wx = boxWeights(w);
+        final int[][] wy = boxWeights(h);
+        final long denom = (long) ((w & 1) != 0 ? w : 2) * ((h & 1) != 0 ? h : 2);
+        final long half = denom / 2;
+        final int[] dst = new int[dw * dh];
+        bands(dh).forEach(b -> {
+            final int end = Math.min(dh, b + BAND);
+            for (int y = b; y < end; ++y) {
+                final int[] ty = wy[y];
+                int o = y * dw;
+                for (int x = 0; x < dw; ++x) {
+                    final int[] tx = wx[x];
+                    long a = 0L, r = 0L, g = 0L, bl = 0L;
+                    for (int j = 0; j < ty.length; ++j) {
+                        final int row = (y * 2 + j) * w + x * 2;
+                        for (int i = 0; i < tx.length; ++i) {
+                            final int p = src[row + i];
+                            final long f = (long) ty[j] * tx[i];
+                            a += (p >>> 24) * f;
+                            r += ((p >> 16) & 0xff) * f;
+                            g += ((p >> 8) & 0xff) * f;
+                            bl += (p & 0xff) * f;
+                        }
+                    }
+                    dst[o++] = (int) ((a + half) / denom) << 24
+                            | (int) ((r + half) / denom) << 16
+                            | (int) ((g + half) / denom) << 8
+                            | (int) ((bl + half) / denom);
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Returns the weights of the source samples that each output sample
+     * covers when a dimension is halved, starting from sample 2x for
+     * output sample x. The weights are out of 2 for an even size, or out
+     * of the size itself for an odd one.
+     */
+    private static int[][] boxWeights(int size) {
+        final int n = size / 2;
+        final int[][] wt = new int[n][];
+        for (int x = 0; x < n; ++x) {
+            wt[x] = (size & 1) == 0 ? new int[]{1, 1} : new int[]{n - x, n, x + 1};
+        }
+        return wt;
+    }
+
+    private static int[] horizontal(int[] src, int w, int h, int dw) {
+        final Kernel k = new Kernel(w, dw);
+        final int[] dst = new int[dw * h];
+        bands(h).forEach(b -> {
+            final int end = Math.min(h, b + BAND);
+            for (int y = b; y < end; ++y) {
+                final int row = y * w;
+                int o = y * dw;
+                for (int x = 0; x < dw; ++x) {
+                    final int first = k.first[x];
+                    final float[] wt = k.weights[x];
+                    float a = 0f, r = 0f, g = 0f, bl = 0f;
+                    for (int i = 0; i < wt.length; ++i) {
+                        final int p = src[row + first + i];
+                        final float f = wt[i];
+                        a += (p >>> 24) * f;
+                        r += ((p >> 16) & 0xff) * f;
+                        g += ((p >> 8) & 0xff) * f;
+                        bl += (p & 0xff) * f;
+                    }
+                    dst[o++] = pack(a, r, g, bl);
+                }
+            }
+        });
+        return dst;
+    }
+
+    private static int[] vertical(int[] src, int w, int h, int dh) {
+        final Kernel k = new Kernel(h, dh);
+        final int[] dst = new int[w * dh];
+        bands(dh).forEach(b -> {
+            final int end = Math.min(dh, b + BAND);
+            final float[] acc = new float[w * 4];
+            for (int y = b; y < end; ++y) {
+                Arrays.fill(acc, 0f);
+                final int first = k.first[y];
+                final float[] wt = k.weights[y];
+                for (int i = 0; i < wt.length; ++i) {
+                    final float f = wt[i];
+                    int s = (first + i) * w;
+                    for (int x = 0, j = 0; x < w; ++x, ++s) {
+                        final int p = src[s];
+                        acc[j++] += (p >>> 24) * f;
+                        acc[j++] += ((p >> 16) & 0xff) * f;
+                        acc[j++] += ((p >> 8) & 0xff) * f;
+                        acc[j++] += (p & 0xff) * f;
+                    }
+                }
+                int o = y * w;
+                for (int j = 0; j < acc.length; j += 4) {
+                    dst[o++] = pack(acc[j], acc[j + 1], acc[j + 2], acc[j + 3]);
+                }
+            }
+        });
+        return dst;
+    }
+
+    /**
+     * Packs filtered channel values, clamping them to the valid range for
+     * premultiplied colour (no channel may exceed alpha).
+     */
+    private static int pack(float a, float r, float g, float b) {
+        final int ia = clamp(a, 255);
+        return (ia << 24) | (clamp(r, ia) << 16) | (clamp(g, ia) << 8) | clamp(b, ia);
+    }
+
+    private static int clamp(float v, int max) {
+        final int i = (int) (v + 0.5f);
+        return i < 0 ? 0 : i > max ? max : i;
+    }
+
+    private static int premultiply(int argb) {
+        final int a = argb >>> 24;
+        if (a == 255) {
+            return argb;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        final int r = ((argb >> 16) & 0xff) * a + 127;
+        final int g = ((argb >> 8) & 0xff) * a + 127;
+        final int b = (argb & 0xff) * a + 127;
+        return (a << 24) | ((r + (r >> 8)) >> 8 << 16) | ((g + (g >> 8)) >> 8 << 8) | ((b + (b >> 8)) >> 8);
+    }
+
+    private static int unpremultiply(int argb) {
+        final int a = argb >>> 24;
+        if (a == 255 || a == 0) {
+            return argb;
+        }
+        final int half = a / 2;
+        final int r = Math.min(255, (((argb >> 16) & 0xff) * 255 + half) / a);
+        final int g = Math.min(255, (((argb >> 8) & 0xff) * 255 + half) / a);
+        final int b = Math.min(255, ((argb & 0xff) * 255 + half) / a);
+        return (a << 24) | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Returns the first row of each band, in parallel when there is more
+     * than one band.
+     */
+    private static IntStream bands(int rows) {
+        final int n = (rows + BAND - 1) / BAND;
+        final IntStream s = IntStream.range(0, n).map(i -> i * BAND);
+        return n > 1 ? s.parallel() : s;
+    }
+
+    /**
+     * The normalized Lanczos weights for resampling one dimension.
+     * {@code weights[i]} applies to the source samples starting at
+     * {@code first[i]}.
+     */
+    private static final class Kernel {
+
+        final int[] first;
+        final float[][] weights;
+
+        Kernel(int srcSize, int dstSize) {
+            final double scale = srcSize / (double) dstSize;
+            // widen the filter when shrinking so that it also antialiases
+            final double stretch = Math.max(1d, scale);
+            final double support = LOBES * stretch;
+            first = new int[dstSize];
+            weights = new float[dstSize][];
+            for (int i = 0; i < dstSize; ++i) {
+                final double centre = (i + 0.5d) * scale;
+                final int lo = Math.max(0, (int) Math.floor(centre - support));
+                final int hi = Math.min(srcSize - 1, (int) Math.ceil(centre + support));
+                final float[] wt = new float[hi - lo + 1];
+                double sum = 0d;
+                for (int s = lo; s <= hi; ++s) {
+                    final double v = lanczos((s + 0.5d - centre) / stretch);
+                    wt[s - lo] = (float) v;
+                    sum += v;
+                }
+                if (sum != 0d) {
+                    for (int j = 0; j < wt.length; ++j) {
+                        wt[j] = (float) (wt[j] / sum);
+                    }
+                }
+                first[i] = lo;
+                weights[i] = wt;
+            }
+        }
+
+        private static double lanczos(double x) {
+            x = Math.abs(x);
+            if (x < 1e-8d) {
+                return 1d;
+            }
+            if (x >= LOBES) {
+                return 0d;
+            }
+            final double px = Math.PI * x;
+            return LOBES * Math.sin(px) * Math.sin(px / LOBES) / (px * px);
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package ca.cgjennings.seplugins.export;
+
+import ca.cgjennings.apps.arkham.StrangeEons;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Exports a list of files by sharing them out among several worker
+ * processes, each running its own copy of Strange Eons. A single process
+ * eventually stops getting faster as threads are added, because of garbage
+ * collection and contention in the renderer; separate processes avoid
+ * that, so that a machine with many cores can be kept busy.
+ *
+ * <p>
+ * Each worker is started with a command that runs Strange Eons with a script
+ * that calls {@link CommandLineExporter#runWorker}. The coordinator sends it
+ * the command line options to export with, then batches of files, over its
+ * standard input; the worker reports the files it writes and any errors on
+ * its standard output (see {@link ExportWorker}). These reports are passed
+ * on to the listeners of the coordinator's exporter as they arrive, so the
+ * export can be tracked as if it were running locally. The cost that a
+ * worker measures for each file is recorded in the coordinator's
+ * {@linkplain #setHistory history}.
+ *
+ * <p>
+ * Files are handed out largest first, in batches that shrink as the work
+ * runs out so that the workers finish together. If a worker exits before
+ * finishing a batch, or sends nothing for longer than the
+ * {@linkplain #setTimeout timeout}, it is stopped and restarted and the
+ * batch is tried again, up to the {@linkplain #setRetryCount retry count}.
+ * Errors reported by a batch that did not finish are dropped, since the
+ * retry will report them again.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class ExportCoordinator {
+
+    private static final int MAX_BATCH = 8;
+    // queued by a worker's reader thread when its output ends
+    private static final String END = new String();
+
+    private final Exporter exporter;
+    private final List<String> command;
+    private final List<String> options;
+    private int processes = 2;
+    private int retries = 2;
+    private int timeout = 300;
+    private boolean largestFirst = true;
+    private ExportHistory history;
+
+    // files waiting to be exported, and the number queued or in progress
+    private final ArrayDeque<Task> queue = new ArrayDeque<>();
+    private int outstanding;
+    private int liveWorkers;
+    // outputs already reported, so that retried files are not counted twice
+    private final Set<String> written = new HashSet<>();
+
+    /**
+     * Creates a new coordinator.
+     *
+     * @param exporter the exporter whose listeners are told about the files
+     * that the workers export
+     * @param command the command that starts a worker process
+     * @param options the command line options that the workers export with
+     */
+    public ExportCoordinator(Exporter exporter, List<String> command, List<String> options) {
+        this.exporter = Objects.requireNonNull(exporter, "exporter");
+        if (command.isEmpty()) {
+            throw new IllegalArgumentException("empty worker command");
+        }
+        this.command = new ArrayList<>(command);
+        this.options = new ArrayList<>(options);
+    }
+
+    public int getProcessCount() {
+        return processes;
+    }
+
+    /**
+     * Sets the number of worker processes to start.
+     *
+     * @param processes the number of workers, at least 1
+     */
+    public void setProcessCount(int processes) {
+        if (processes < 1) {
+            throw new IllegalArgumentException("processes: " + processes);
+        }
+        this.processes = processes;
+    }
+
+    public int getRetryCount() {
+        return retries;
+    }
+
+    /**
+     * Sets how many times a file is tried again after the worker exporting
+     * it exits, and how many times in a row a worker is restarted, before
+     * giving up.
+     *
+     * @param retries the number of retries
+     */
+    public void setRetryCount(int retries) {
+        this.retries = Math.max(0, retries);
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how long a worker may go without sending anything before it is
+     * assumed to be stuck. It is then stopped, and its batch is retried as
+     * if it had exited. The time should allow for starting a worker and for
+     * rendering the largest face.
+     *
+     * @param seconds the time limit in seconds, or 0 for no limit
+     */
+    public void setTimeout(int seconds) {
+        this.timeout = Math.max(0, seconds);
+    }
+
+    public boolean isLargestFirst() {
+        return largestFirst;
+    }
+
+    /**
+     * Sets whether files are handed out in order of their estimated cost,
+     * largest first, or in the order they are listed.
+     *
+     * @param largestFirst if true, expensive files are started first
+     * @see BatchExporter#setLargestFirst
+     */
+    public void setLargestFirst(boolean largestFirst) {
+        this.largestFirst = largestFirst;
+    }
+
+    public ExportHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Sets a history used to estimate the cost of each file.
+     *
+     * @param history the history to use, or null to estimate costs from
+     * file sizes
+     * @see BatchExporter#setHistory
+     */
+    public void setHistory(ExportHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Exports the listed files, blocking until all of them have been
+     * exported or have failed.
+     *
+     * @param files the files to export
+     */
+    public void export(List<File> files) {
+        final List<File> ordered = new ArrayList<>(files);
+        if (largestFirst) {
+            final double ppi = exporter.getResolution();
+            final Map<File, Double> cost = new HashMap<>();
+            for (File f : ordered) {
+                cost.put(f, history == null ? (double) f.length() : history.estimate(f, ppi));
+            }
+            ordered.sort((a, b) -> Double.compare(cost.get(b), cost.get(a)));
+        }
+        final int workers;
+        synchronized (this) {
+            queue.clear();
+            written.clear();
+            for (File f : ordered) {
+                queue.add(new Task(f.getAbsoluteFile()));
+            }
+            outstanding = queue.size();
+            liveWorkers = Math.min(processes, queue.size());
+            workers = liveWorkers;
+        }
+
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workers; ++i) {
+            final Thread t = new Thread(this::runWorker, "Bulk export coordinator " + (i + 1));
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Feeds batches to one worker process, restarting it if it exits.
+     */
+    private void runWorker() {
+        Worker w = null;
+        int failures = 0;
+        try {
+            for (;;) {
+                final List<Task> batch = take();
+                if (batch.isEmpty()) {
+                    return;
+                }
+                if (w == null) {
+                    try {
+                        w = new Worker();
+                    } catch (IOException ex) {
+                        StrangeEons.log.log(Level.WARNING, "unable to start export worker", ex);
+                        putBack(batch, false);
+                        if (++failures > retries) {
+                            giveUp(ex.getLocalizedMessage());
+                            return;
+                        }
+                        continue;
+                    }
+                }
+                if (w.export(batch)) {
+                    finished(batch);
+                    failures = 0;
+                } else {
+                    w.destroy();
+                    w = null;
+                    putBack(batch, true);
+                    if (++failures > retries) {
+                        giveUp("export worker exited");
+                        return;
+                    }
+                }
+            }
+        } finally {
+            if (w != null) {
+                w.quit();
+            }
+        }
+    }
+
+    /**
+     * Returns the next batch of files, waiting if other workers still have
+     * files that may be put back. Returns an empty batch when every file is
+     * done.
+     */
+    private synchronized List<Task> take() {
+        while (queue.isEmpty() && outstanding > 0) {
+            try {
+                wait();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return Collections.emptyList();
+            }
+        }
+        // large batches keep workers busy between messages; small ones at
+        // the end let the workers finish together
+        final int n = Math.max(1, Math.min(MAX_BATCH, queue.size() / (processes * 4)));
+        final List<Task> batch = new ArrayList<>(n);
+        while (batch.size() < n && !queue.isEmpty()) {
+            batch.add(queue.poll());
+        }
+        return batch;
+    }
+
+    private synchronized void finished(List<Task> batch) {
+        outstanding -= batch.size();
+        notifyAll();
+    }
+
+    /**
+     * Returns the files of a batch that did not finish to the front of the
+     * queue. If the batch failed, files that have used up their retries
+     * are reported as failed instead.
+     */
+    private void putBack(List<Task> batch, boolean failed) {
+        final List<Task> lost = new ArrayList<>();
+        synchronized (this) {
+            for (int i = batch.size() - 1; i >= 0; --i) {
+                final Task t = batch.get(i);
+                if (failed && ++t.attempts > retries) {
+                    lost.add(t);
+                    --outstanding;
+                } else {
+                    queue.addFirst(t);
+                }
+            }
+            notifyAll();
+        }
+        for (Task t : lost) {
+            fail(t.file, "export worker exited while exporting this file");
+        }
+    }
+
+    /**
+     * Stops a worker that cannot be kept running. If it was the last one,
+     * the files that are left are reported as failed.
+     */
+    private void giveUp(String message) {
+        final List<Task> lost = new ArrayList<>();
+        synchronized (this) {
+            if (--liveWorkers == 0) {
+                lost.addAll(queue);
+                queue.clear();
+                outstanding = 0;
+            }
+            notifyAll();
+        }
+        for (Task t : lost) {
+            fail(t.file, message);
+        }
+    }
+
+    private void fail(File file, String message) {
+        exporter.dispatch(new ExportEvent(
+                exporter, ExportEvent.Type.FAILED, file, -1, 0L, null, 0L, 0, 0, message, null
+        ));
+    }
+
+    private static final class Task {
+
+        final File file;
+        int attempts;
+
+        Task(File file) {
+            this.file = file;
+        }
+    }
+
+    /**
+     * A running worker process.
+     */
+    private final class Worker {
+
+        private final Process process;
+        private final PrintWriter out;
+        private final BufferedReader in;
+        // lines read from the worker's output by the reader thread
+        private final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        private boolean ended;
+
+        Worker() throws IOException {
+            process = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            out = new PrintWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            in = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+            final Thread reader = new Thread(this::readLines, "Bulk export worker output");
+            reader.setDaemon(true);
+            reader.start();
+            ExportWorker.sendList(out, ExportWorker.OPTIONS, options);
+            String[] msg;
+            try {
+                msg = read();
+            } catch (IOException ex) {
+                msg = null;
+            }
+            if (msg == null || !msg[0].equals(ExportWorker.READY)) {
+                destroy();
+                throw new IOException("export worker exited before it was ready");
+            }
+        }
+
+        /**
+         * Exports a batch, returning true if the worker finished it.
+         */
+        boolean export(List<Task> batch) {
+            final List<String> paths = new ArrayList<>(batch.size());
+            for (Task t : batch) {
+                paths.add(t.file.getPath());
+            }
+            ExportWorker.sendList(out, ExportWorker.EXPORT, paths);
+            if (out.checkError()) {
+                return false;
+            }
+
+            final List<ExportEvent> failures = new ArrayList<>();
+            for (;;) {
+                final String[] msg;
+                try {
+                    msg = read();
+                } catch (IOException ex) {
+                    return false;
+                }
+                if (msg == null) {
+                    return false;
+                }
+                try {
+                    if (handle(msg, failures)) {
+                        return true;
+                    }
+                } catch (RuntimeException ex) {
+                    // a garbled message means the worker can't be trusted
+                    StrangeEons.log.log(Level.WARNING, "bad message from export worker", ex);
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * Handles a message received while exporting a batch, returning
+         * true if the batch is done.
+         */
+        private boolean handle(String[] msg, List<ExportEvent> failures) {
+            switch (msg[0]) {
+                case ExportWorker.WRITTEN:
+                    written(msg);
+                    return false;
+                case ExportWorker.FAILED:
+                    failures.add(new ExportEvent(
+                            exporter, ExportEvent.Type.FAILED, new File(msg[1]), Integer.parseInt(msg[2]),
+                            0L, null, 0L, 0, 0, msg[3], null
+                    ));
+                    return false;
+                case ExportWorker.COST:
+                    if (history != null) {
+                        history.record(new File(msg[1]), Integer.parseInt(msg[2]), Long.parseLong(msg[3]),
+                                Double.parseDouble(msg[4]), Long.parseLong(msg[5]));
+                    }
+                    return false;
+                case ExportWorker.DONE:
+                    for (ExportEvent e : failures) {
+                        exporter.dispatch(e);
+                    }
+                    return true;
+                default:
+                    StrangeEons.log.log(Level.WARNING, "unknown worker message: {0}", msg[0]);
+                    return false;
+            }
+        }
+
+        private void written(String[] msg) {
+            synchronized (ExportCoordinator.this) {
+                if (!written.add(msg[3])) {
+                    return;
+                }
+            }
+            exporter.dispatch(new ExportEvent(
+                    exporter, ExportEvent.Type.WRITTEN, new File(msg[1]), Integer.parseInt(msg[2]),
+                    Long.parseLong(msg[7]), msg[3].isEmpty() ? null : new File(msg[3]),
+                    Long.parseLong(msg[4]), Integer.parseInt(msg[5]), Integer.parseInt(msg[6]),
+                    null, null
+            ));
+        }
+
+        /**
+         * Reads the next protocol message, split into its type and fields.
+         * Other output from the worker is passed on to standard error.
+         * Returns null if the worker's output ends. Throws an exception if
+         * the worker sends nothing before the timeout.
+         */
+        private String[] read() throws IOException {
+            for (;;) {
+                final String line = next();
+                if (line == null) {
+                    return null;
+                }
+                if (!line.startsWith(ExportWorker.PREFIX)) {
+                    System.err.println(line);
+                    continue;
+                }
+                final String[] msg = line.substring(ExportWorker.PREFIX.length()).split("\t", -1);
+                for (int i = 1; i < msg.length; ++i) {
+                    msg[i] = ExportWorker.unescape(msg[i]);
+                }
+                return msg;
+            }
+        }
+
+        /**
+         * Returns the next line of output, or null if the output has ended.
+         * The lines are read by a separate thread, so that a worker that
+         * stops responding, even partway through a line, can't hold up this
+         * thread for longer than the timeout.
+         */
+        private String next() throws IOException {
+            if (ended) {
+                return null;
+            }
+            final String line;
+            try {
+                if (timeout == 0) {
+                    line = lines.take();
+                } else {
+                    line = lines.poll(timeout, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for export worker");
+            }
+            if (line == null) {
+                StrangeEons.log.log(Level.WARNING, "export worker sent nothing for {0} s; stopping it", timeout);
+                throw new IOException("export worker stopped responding");
+            }
+            if (line == END) {
+                ended = true;
+                return null;
+            }
+            return line;
+        }
+
+        /**
+         * Copies the worker's output into the line queue until it ends.
+         * Destroying the process closes the output, which ends the thread.
+         */
+        private void readLines() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lines.add(line);
+                }
+            } catch (IOException ex) {
+                // treated as the end of the output
+            } finally {
+                lines.add(END);
+            }
+        }
+
+        void quit() {
+            out.print(ExportWorker.PREFIX + ExportWorker.QUIT + '\n');
+            out.close();
+            try {
+                if (!process.waitFor(10L, TimeUnit.SECONDS)) {
+                    destroy();
+                }
+            } catch (InterruptedException ie) {
+                destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void destroy() {
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package ca.cgjennings.seplugins.export;
+
+import java.io.File;
+import java.util.EventObject;
+
+/**
+ * An event that describes a step in exporting a single face. The source of
+ * the event is the {@link Exporter}.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class ExportEvent extends EventObject {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The kinds of export event.
+     */
+    public enum Type {
+        /**
+         * A face is about to be rendered.
+         */
+        STARTED,
+        /**
+         * A face was rendered; the event's width and height give the size of
+         * the rendered image.
+         */
+        RENDERED,
+        /**
+         * A face was written; the event's output file and byte count
+         * describe the file that was written.
+         */
+        WRITTEN,
+        /**
+         * A face, or the whole file if the face index is -1, could not be
+         * exported; the event's message describes the problem.
+         */
+        FAILED
+    }
+
+    private final Type type;
+    private final File sourceFile;
+    private final int index;
+    private final long elapsed;
+    private final File outputFile;
+    private final long bytes;
+    private final int width, height;
+    private final String message;
+    private final long[] stageNanos;
+
+    ExportEvent(Exporter source, Type type, File sourceFile, int index, long elapsed, File outputFile, long bytes, int width, int height, String message, long[] stageNanos) {
+        super(source);
+        this.type = type;
+        this.sourceFile = sourceFile;
+        this.index = index;
+        this.elapsed = elapsed;
+        this.outputFile = outputFile;
+        this.bytes = bytes;
+        this.width = width;
+        this.height = height;
+        this.message = message;
+        this.stageNanos = stageNanos == null ? null : stageNanos.clone();
+    }
+
+    @Override
+    public Exporter getSource() {
+        return (Exporter) super.getSource();
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Returns the component file being exported.
+     *
+     * @return the source file
+     */
+    public File getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * Returns the index of the face (0=front, 1=back, and so on), or -1 if
+     * the event applies to the file as a whole.
+     *
+     * @return the face index
+     */
+    public int getFaceIndex() {
+        return index;
+    }
+
+    /**
+     * Returns the time, in nanoseconds, since the face was started. This is
+     * 0 for {@link Type#STARTED} and {@link Type#FAILED} events.
+     *
+     * @return the elapsed time
+     */
+    public long getElapsedNanos() {
+        return elapsed;
+    }
+
+    /**
+     * Returns the file that was written, or null if this is not a
+     * {@link Type#WRITTEN} event.
+     *
+     * @return the output file
+     */
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Returns the number of bytes written, or 0 if this is not a
+     * {@link Type#WRITTEN} event.
+     *
+     * @return the output size
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Returns the width of the rendered image, or 0 if unknown.
+     *
+     * @return the image width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the rendered image, or 0 if unknown.
+     *
+     * @return the image height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns a description of the error, or null if this is not a
+     * {@link Type#FAILED} event.
+     *
+     * @return the error message
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the time, in nanoseconds, that was spent on this face in the
+     * specified stage. This is only available for {@link Type#WRITTEN}
+     * events; it is 0 for other events and for stages that were skipped.
+     *
+     * @param stage the stage to check
+     * @return the time spent in the stage
+     */
+    public long getStageNanos(ExportMetrics.Stage stage) {
+        return stageNanos == null ? 0L : stageNanos[stage.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        return "ExportEvent{" + "type=" + type + ", sourceFile=" + sourceFile + ", index=" + index + ", elapsed=" + elapsed + ", outputFile=" + outputFile + ", bytes=" + bytes + ", width=" + width + ", height=" + height + ", message=" + message + '}';
+    }
+}
@@ -0,0 +1,234 @@
+package ca.cgjennings.seplugins.export;
+
+import ca.cgjennings.apps.arkham.StrangeEons;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+
+/**
+ * Records how much work it took to export each file, so that later exports
+ * can estimate the cost of a file before loading it and start the most
+ * expensive files first (see {@link BatchExporter#setHistory}). An entry
+ * records the size of the source file, its number of sheets, the pixel area
+ * of those sheets and the resolution they were rendered at, and the total
+ * time spent working on the file by all stages of the export. Time spent
+ * waiting for memory or for room in a busy stage is not counted, since it
+ * depends on the other files in the export rather than on the file itself.
+ *
+ * <p>
+ * The history as a whole is used to split the time spent on a file into a
+ * cost per sheet (loading, layout, writing) and a cost per pixel (drawing,
+ * processing and encoding), fitted by least squares over every entry. A
+ * file that has been exported before is estimated from its own time, with
+ * the pixel part scaled to its estimated pixel area at the requested
+ * resolution. Other files are estimated from their size, using the average
+ * time per byte of the files in the history.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class ExportHistory {
+
+    private static final String SEP = "\t";
+    private final File historyFile;
+    private final Properties entries = new Properties();
+    private boolean dirty;
+    // averages computed from the entries, or NaN if not yet computed
+    private double nanosPerByte = Double.NaN;
+    private double nanosPerSheet = Double.NaN;
+    private double nanosPerPixel = Double.NaN;
+
+    /**
+     * Creates a history that is stored in the specified file. If the file
+     * exists, the existing entries are read from it.
+     *
+     * @param historyFile the file that stores the history
+     */
+    public ExportHistory(File historyFile) {
+        this.historyFile = historyFile;
+        if (historyFile.exists()) {
+            try (InputStream in = new FileInputStream(historyFile)) {
+                entries.load(in);
+            } catch (IOException | IllegalArgumentException ex) {
+                StrangeEons.log.log(Level.WARNING, "ignoring unreadable export history " + historyFile, ex);
+                entries.clear();
+            }
+        }
+    }
+
+    /**
+     * Creates a history that is only kept in memory. A worker process uses
+     * this to measure the files it exports so that it can report their
+     * costs to the coordinator.
+     */
+    ExportHistory() {
+        historyFile = null;
+    }
+
+    /**
+     * Returns the file that stores the history, or null if the history is
+     * only kept in memory.
+     *
+     * @return the history file
+     */
+    public File getFile() {
+        return historyFile;
+    }
+
+    /**
+     * Returns the estimated time needed to export a file, in nanoseconds.
+     * Estimates are only meaningful relative to each other.
+     *
+     * @param source the file to be exported
+     * @param ppi the resolution that the file will be exported at
+     * @return the estimated cost of the file
+     */
+    public synchronized double estimate(File source, double ppi) {
+        if (Double.isNaN(nanosPerByte)) {
+            fit();
+        }
+        final Entry e = entry(source);
+        if (e == null || e.nanos <= 0L) {
+            return source.length() * nanosPerByte;
+        }
+        double cost = e.nanos;
+        if (ppi > 0d && e.ppi > 0d && e.pixels > 0L) {
+            final double scale = (ppi / e.ppi) * (ppi / e.ppi);
+            final double sheetPart = nanosPerSheet * e.sheets;
+            final double pixelPart = nanosPerPixel * e.pixels;
+            // the share of this file's time that grows with its pixel area
+            final double share = sheetPart + pixelPart > 0d ? pixelPart / (sheetPart + pixelPart) : 1d;
+            cost *= (1d - share) + share * scale;
+        }
+        return cost;
+    }
+
+    /**
+     * Computes the average time per byte, and fits the time of each entry
+     * to a cost per sheet plus a cost per pixel.
+     */
+    private void fit() {
+        double nanos = 0d, bytes = 0d;
+        double ss = 0d, sp = 0d, pp = 0d, sn = 0d, pn = 0d;
+        for (String key : entries.stringPropertyNames()) {
+            final Entry e = entry(key);
+            if (e == null || e.nanos <= 0L) {
+                continue;
+            }
+            if (e.bytes > 0L) {
+                nanos += e.nanos;
+                bytes += e.bytes;
+            }
+            if (e.sheets > 0 && e.pixels > 0L) {
+                ss += (double) e.sheets * e.sheets;
+                sp += (double) e.sheets * e.pixels;
+                pp += (double) e.pixels * e.pixels;
+                sn += (double) e.sheets * e.nanos;
+                pn += (double) e.pixels * e.nanos;
+            }
+        }
+        nanosPerByte = bytes > 0d && nanos > 0d ? nanos / bytes : 1d;
+
+        // solve the normal equations for nanos = a * sheets + b * pixels;
+        // if the fit is degenerate or negative, charge everything to pixels
+        final double det = ss * pp - sp * sp;
+        double a = 0d, b = 0d;
+        if (det > 1e-9 * ss * pp) {
+            a = (sn * pp - pn * sp) / det;
+            b = (pn * ss - sn * sp) / det;
+        }
+        if (a < 0d || b <= 0d) {
+            a = 0d;
+            b = pp > 0d ? pn / pp : 0d;
+        }
+        nanosPerSheet = a;
+        nanosPerPixel = b;
+    }
+
+    /**
+     * Records the cost of exporting a file.
+     *
+     * @param source the file that was exported
+     * @param sheets the number of sheets that were exported
+     * @param pixels the total pixel area of the sheets
+     * @param ppi the resolution the file was exported at
+     * @param nanos the time spent exporting the file, summed over all stages
+     */
+    public synchronized void record(File source, int sheets, long pixels, double ppi, long nanos) {
+        entries.setProperty(source.getAbsolutePath(), String.join(SEP,
+                String.valueOf(source.length()), String.valueOf(sheets), String.valueOf(pixels),
+                String.valueOf(ppi), String.valueOf(nanos)
+        ));
+        nanosPerByte = Double.NaN;
+        dirty = true;
+    }
+
+    /**
+     * Writes the history to its file if it has changed.
+     *
+     * @throws IOException if an error occurs while writing the history
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty || historyFile == null) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(historyFile)) {
+            entries.store(out, "Bulk export history");
+        }
+        dirty = false;
+    }
+
+    /**
+     * Returns the fields of the entry for a file as they are stored: the
+     * source size, sheet count, pixel area, resolution and time. Returns
+     * null if the file has no entry.
+     */
+    synchronized String[] fields(File source) {
+        final String value = entries.getProperty(source.getAbsolutePath());
+        return value == null ? null : value.split(SEP, -1);
+    }
+
+    private Entry entry(File source) {
+        return entry(source.getAbsolutePath());
+    }
+
+    private Entry entry(String key) {
+        final String value = entries.getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        final String[] fields = value.split(SEP, -1);
+        if (fields.length < 5) {
+            return null;
+        }
+        try {
+            return new Entry(
+                    Long.parseLong(fields[0]), Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+                    Double.parseDouble(fields[3]), Long.parseLong(fields[4])
+            );
+        } catch (NumberFormatException nfe) {
+            return null;
+        }
+    }
+
+    private static final class Entry {
+
+        final long bytes;
+        final int sheets;
+        final long pixels;
+        final double ppi;
+        final long nanos;
+
+        Entry(long bytes, int sheets, long pixels, double ppi, long nanos) {
+            this.bytes = bytes;
+            this.sheets = sheets;
+            this.pixels = pixels;
+            this.ppi = ppi;
+            this.nanos = nanos;
+        }
+    }
+}
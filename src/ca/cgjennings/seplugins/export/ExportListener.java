@@ -0,0 +1,22 @@
+package ca.cgjennings.seplugins.export;
+
+import java.util.EventListener;
+
+/**
+ * A listener that is notified of the progress of each face exported by an
+ * {@link Exporter}. Events are delivered as they happen, on the thread that
+ * is doing the work; when exporting with a {@link BatchExporter}, this means
+ * that listeners may be called from several threads at once.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+@FunctionalInterface
+public interface ExportListener extends EventListener {
+
+    /**
+     * Called when a face is started, rendered, written, or fails.
+     *
+     * @param e an event describing what happened
+     */
+    void exportProgressed(ExportEvent e);
+}
@@ -0,0 +1,199 @@
+package ca.cgjennings.seplugins.export;
+
+import ca.cgjennings.apps.arkham.StrangeEons;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Level;
+
+/**
+ * Records which files have been exported, and with what settings, so that
+ * files whose images are still up to date can be skipped by later exports.
+ * Each source file is identified by its path; it is considered unchanged if
+ * its size and modification time match the manifest or, failing that, if
+ * its content hash does. An entry also records a digest of the export
+ * settings and the list of files that were written; if the settings differ
+ * or an output file is missing, the file is exported again.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class ExportManifest {
+
+    private static final String SEP = "\t";
+    private final File manifestFile;
+    private final Properties entries = new Properties();
+    private boolean dirty;
+
+    /**
+     * Creates a manifest that is stored in the specified file. If the file
+     * exists, the existing entries are read from it.
+     *
+     * @param manifestFile the file that stores the manifest
+     */
+    public ExportManifest(File manifestFile) {
+        this.manifestFile = manifestFile;
+        if (manifestFile.exists()) {
+            try (InputStream in = new FileInputStream(manifestFile)) {
+                entries.load(in);
+            } catch (IOException | IllegalArgumentException ex) {
+                StrangeEons.log.log(Level.WARNING, "ignoring unreadable manifest " + manifestFile, ex);
+                entries.clear();
+            }
+        }
+    }
+
+    public File getFile() {
+        return manifestFile;
+    }
+
+    /**
+     * Returns true if the manifest shows that the specified file was already
+     * exported using the same settings, and the output files still exist.
+     *
+     * @param source the file to be exported
+     * @param settings the digest of the export settings
+     * @return true if the file can be skipped
+     */
+    public boolean isCurrent(File source, String settings) {
+        final String key = source.getAbsolutePath();
+        final String value;
+        synchronized (this) {
+            value = entries.getProperty(key);
+        }
+        if (value == null) {
+            return false;
+        }
+        final String[] fields = value.split(SEP, -1);
+        if (fields.length < 4 || !fields[3].equals(settings)) {
+            return false;
+        }
+        for (int i = 4; i < fields.length; ++i) {
+            if (!new File(fields[i]).exists()) {
+                return false;
+            }
+        }
+
+        final long size = source.length();
+        final long modified = source.lastModified();
+        if (fields[0].equals(String.valueOf(size)) && fields[1].equals(String.valueOf(modified))) {
+            return true;
+        }
+
+        // the file was touched, but may not have changed; the lock is not
+        // held while hashing so that other threads aren't held up by it
+        if (!fields[0].equals(String.valueOf(size)) || !fields[2].equals(hash(source))) {
+            return false;
+        }
+        fields[1] = String.valueOf(modified);
+        synchronized (this) {
+            // don't replace an entry that changed while the file was hashed
+            if (value.equals(entries.getProperty(key))) {
+                entries.setProperty(key, String.join(SEP, fields));
+                dirty = true;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records that a file was successfully exported.
+     *
+     * @param source the file that was exported
+     * @param settings the digest of the export settings
+     * @param outputs the files that were written
+     */
+    public void update(File source, String settings, List<File> outputs) {
+        final String hash = hash(source);
+        if (hash == null) {
+            remove(source);
+            return;
+        }
+        List<String> fields = new ArrayList<>(4 + outputs.size());
+        fields.add(String.valueOf(source.length()));
+        fields.add(String.valueOf(source.lastModified()));
+        fields.add(hash);
+        fields.add(settings);
+        for (File f : outputs) {
+            fields.add(f.getAbsolutePath());
+        }
+        synchronized (this) {
+            entries.setProperty(source.getAbsolutePath(), String.join(SEP, fields));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Removes any entry for the specified file, so that it will be exported
+     * the next time.
+     *
+     * @param source the file to remove
+     */
+    public synchronized void remove(File source) {
+        if (entries.remove(source.getAbsolutePath()) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Writes the manifest to its file if it has changed.
+     *
+     * @throws IOException if an error occurs while writing the manifest
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(manifestFile)) {
+            entries.store(out, "Bulk export manifest");
+        }
+        dirty = false;
+    }
+
+    /**
+     * Returns a hex digest of the file's content, or null if it cannot be
+     * read.
+     */
+    private static String hash(File f) {
+        try (InputStream in = new FileInputStream(f)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buff = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buff)) >= 0) {
+                md.update(buff, 0, read);
+            }
+            return toHex(md.digest());
+        } catch (IOException | NoSuchAlgorithmException ex) {
+            StrangeEons.log.log(Level.WARNING, "unable to hash " + f, ex);
+            return null;
+        }
+    }
+
+    /**
+     * Returns a hex digest of a string.
+     */
+    static String hash(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            return toHex(md.digest(s.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        StringBuilder b = new StringBuilder(digest.length * 2);
+        for (byte d : digest) {
+            b.append(Character.forDigit((d >> 4) & 0xf, 16)).append(Character.forDigit(d & 0xf, 16));
+        }
+        return b.toString();
+    }
+}
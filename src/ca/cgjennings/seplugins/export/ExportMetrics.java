@@ -0,0 +1,319 @@
+package ca.cgjennings.seplugins.export;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects timing and size measurements for an export run. When set on an
+ * {@link Exporter}, the time spent in each {@linkplain Stage stage} is
+ * recorded for every file or face, along with the size of each rendered
+ * image and each file written. The measurements can be summarized as
+ * percentiles and histograms, either as text or as a JSON report.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class ExportMetrics {
+
+    /**
+     * The stages that are timed. {@link #LOAD} is timed once per file; the
+     * other stages are timed once per face (or per output profile, for the
+     * stages after rendering).
+     */
+    public enum Stage {
+        LOAD, RENDER, RESIZE, POSTPROCESS, ENCODE, WRITE
+    }
+
+    private final Distribution[] stages = new Distribution[Stage.values().length];
+    private final Distribution pixels = new Distribution();
+    private final Distribution bytes = new Distribution();
+    private long startTime, stopTime;
+    private final AtomicInteger reused = new AtomicInteger();
+
+    public ExportMetrics() {
+        for (int i = 0; i < stages.length; ++i) {
+            stages[i] = new Distribution();
+        }
+    }
+
+    /**
+     * Marks the start of the export run, for throughput measurements.
+     */
+    public synchronized void start() {
+        startTime = System.nanoTime();
+        stopTime = 0L;
+    }
+
+    /**
+     * Marks the end of the export run, for throughput measurements.
+     */
+    public synchronized void stop() {
+        stopTime = System.nanoTime();
+    }
+
+    /**
+     * Returns the time between {@link #start} and {@link #stop} (or now, if
+     * not stopped), or 0 if the run was never started.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    public synchronized long getElapsedNanos() {
+        if (startTime == 0L) {
+            return 0L;
+        }
+        return (stopTime == 0L ? System.nanoTime() : stopTime) - startTime;
+    }
+
+    void record(Stage stage, long nanos) {
+        stages[stage.ordinal()].add(nanos);
+    }
+
+    void recordRender(long pixelCount) {
+        pixels.add(pixelCount);
+    }
+
+    void recordWrite(long byteCount) {
+        bytes.add(byteCount);
+    }
+
+    void recordReuse() {
+        reused.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of images whose encoding was reused from the render
+     * cache instead of being encoded again.
+     *
+     * @return the number of reused images
+     */
+    public int getReusedCount() {
+        return reused.get();
+    }
+
+    /**
+     * Returns the distribution of times recorded for a stage, in
+     * nanoseconds.
+     *
+     * @param stage the stage to return times for
+     * @return a snapshot of the stage's times
+     */
+    public Statistics getStatistics(Stage stage) {
+        return stages[stage.ordinal()].snapshot();
+    }
+
+    /**
+     * Returns the distribution of rendered image sizes, in pixels.
+     *
+     * @return a snapshot of the image sizes
+     */
+    public Statistics getPixelStatistics() {
+        return pixels.snapshot();
+    }
+
+    /**
+     * Returns the distribution of written file sizes, in bytes.
+     *
+     * @return a snapshot of the file sizes
+     */
+    public Statistics getByteStatistics() {
+        return bytes.snapshot();
+    }
+
+    /**
+     * Returns a short, human readable summary of the measurements.
+     *
+     * @return a multi-line summary
+     */
+    public String getSummary() {
+        final Statistics written = getByteStatistics();
+        final long elapsed = getElapsedNanos();
+        StringBuilder b = new StringBuilder();
+        b.append(String.format(Locale.ROOT, "%d images rendered, %d files written (%s)",
+                getPixelStatistics().getCount(), written.getCount(), bytes(written.getTotal())));
+        if (getReusedCount() > 0) {
+            b.append(String.format(Locale.ROOT, ", %d reused", getReusedCount()));
+        }
+        if (elapsed > 0L) {
+            b.append(String.format(Locale.ROOT, " in %.1f s, %.1f files/s",
+                    elapsed / 1e9d, written.getCount() / (elapsed / 1e9d)));
+        }
+        b.append('\n');
+        for (Stage stage : Stage.values()) {
+            final Statistics s = getStatistics(stage);
+            if (s.getCount() == 0) {
+                continue;
+            }
+            b.append(String.format(Locale.ROOT, "%-12s total %8.1f s  median %8.1f ms  p90 %8.1f ms  max %8.1f ms\n",
+                    stage.name().toLowerCase(Locale.ROOT),
+                    s.getTotal() / 1e9d, s.getPercentile(50) / 1e6d,
+                    s.getPercentile(90) / 1e6d, s.getMaximum() / 1e6d));
+        }
+        return b.toString();
+    }
+
+    private static String bytes(long n) {
+        if (n < 1024L) {
+            return n + " B";
+        }
+        if (n < 1024L * 1024L) {
+            return String.format(Locale.ROOT, "%.1f KiB", n / 1024d);
+        }
+        return String.format(Locale.ROOT, "%.1f MiB", n / (1024d * 1024d));
+    }
+
+    /**
+     * Writes the measurements as a JSON object. Stage times are given in
+     * microseconds, with a histogram whose buckets each cover a power of two.
+     *
+     * @param w the writer to write to
+     * @throws IOException if an error occurs while writing
+     */
+    public void writeJson(Writer w) throws IOException {
+        w.write("{\n");
+        w.write("  \"elapsedMillis\": " + getElapsedNanos() / 1_000_000L + ",\n");
+        w.write("  \"reused\": " + getReusedCount() + ",\n");
+        w.write("  \"pixels\": ");
+        getPixelStatistics().writeJson(w, 1L);
+        w.write(",\n  \"bytes\": ");
+        getByteStatistics().writeJson(w, 1L);
+        w.write(",\n  \"stages\": {");
+        final Stage[] all = Stage.values();
+        for (int i = 0; i < all.length; ++i) {
+            w.write(i == 0 ? "\n    \"" : ",\n    \"");
+            w.write(all[i].name().toLowerCase(Locale.ROOT));
+            w.write("\": ");
+            getStatistics(all[i]).writeJson(w, 1000L);
+        }
+        w.write("\n  }\n}\n");
+    }
+
+    /**
+     * Writes a JSON report of the measurements to a file.
+     *
+     * @param file the file to write
+     * @throws IOException if an error occurs while writing
+     */
+    public void writeReport(File file) throws IOException {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writeJson(w);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ExportMetrics{" + getSummary().trim() + '}';
+    }
+
+    /**
+     * A growable, thread safe list of samples.
+     */
+    private static final class Distribution {
+
+        private long[] samples = new long[64];
+        private int size;
+
+        synchronized void add(long sample) {
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, size * 2);
+            }
+            samples[size++] = sample;
+        }
+
+        synchronized Statistics snapshot() {
+            long[] sorted = Arrays.copyOf(samples, size);
+            Arrays.sort(sorted);
+            return new Statistics(sorted);
+        }
+    }
+
+    /**
+     * An immutable summary of a set of measurements.
+     */
+    public static final class Statistics {
+
+        private final long[] sorted;
+        private final long total;
+
+        private Statistics(long[] sorted) {
+            this.sorted = sorted;
+            long sum = 0L;
+            for (long s : sorted) {
+                sum += s;
+            }
+            total = sum;
+        }
+
+        public int getCount() {
+            return sorted.length;
+        }
+
+        public long getTotal() {
+            return total;
+        }
+
+        public long getMinimum() {
+            return sorted.length == 0 ? 0L : sorted[0];
+        }
+
+        public long getMaximum() {
+            return sorted.length == 0 ? 0L : sorted[sorted.length - 1];
+        }
+
+        public double getMean() {
+            return sorted.length == 0 ? 0d : total / (double) sorted.length;
+        }
+
+        /**
+         * Returns the value below which the given percentage of measurements
+         * fall, using the nearest-rank method.
+         *
+         * @param percent the percentile, from 0 to 100
+         * @return the percentile value, or 0 if there are no measurements
+         */
+        public long getPercentile(double percent) {
+            if (sorted.length == 0) {
+                return 0L;
+            }
+            percent = Math.max(0d, Math.min(100d, percent));
+            int rank = (int) Math.ceil(percent / 100d * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+
+        /**
+         * Returns a histogram of the measurements, after dividing them by
+         * the unit. Bucket 0 counts values less than 1; bucket <i>k</i>
+         * counts values from 2<sup><i>k</i>-1</sup> to
+         * 2<sup><i>k</i></sup>-1.
+         *
+         * @param unit the divisor to apply to each measurement
+         * @return the bucket counts
+         */
+        public int[] getHistogram(long unit) {
+            int[] buckets = new int[0];
+            for (long s : sorted) {
+                final long v = s / unit;
+                final int bucket = v <= 0L ? 0 : 64 - Long.numberOfLeadingZeros(v);
+                if (bucket >= buckets.length) {
+                    buckets = Arrays.copyOf(buckets, bucket + 1);
+                }
+                ++buckets[bucket];
+            }
+            return buckets;
+        }
+
+        private void writeJson(Writer w, long unit) throws IOException {
+            w.write(String.format(Locale.ROOT,
+                    "{\"count\": %d, \"total\": %d, \"min\": %d, \"mean\": %.1f, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d, \"histogram\": %s}",
+                    getCount(), total / unit, getMinimum() / unit, getMean() / unit,
+                    getPercentile(50) / unit, getPercentile(90) / unit, getPercentile(99) / unit,
+                    getMaximum() / unit, Arrays.toString(getHistogram(unit))
+            ));
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package ca.cgjennings.seplugins.export;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The worker side of a distributed export (see {@link ExportCoordinator}).
+ * A worker process reads commands from its standard input and reports what
+ * it did on its standard output, one message per line. Every message starts
+ * with {@link #PREFIX}; other output lines are not part of the protocol, so
+ * anything else the process prints does no harm. Fields are separated by
+ * tabs and {@linkplain #escape escaped}.
+ *
+ * <pre>
+ * coordinator to worker:
+ *   options n        followed by n lines, the command line options to use
+ *   export n         followed by n lines, the files to export as one batch
+ *   quit
+ * worker to coordinator:
+ *   ready            the options were accepted
+ *   written  source face output bytes width height elapsed
+ *   failed   source face message
+ *   cost     source sheets pixels ppi nanos
+ *                    the measured cost of a file, sent before done
+ *   done             the batch is complete
+ * </pre>
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class ExportWorker {
+
+    static final String PREFIX = "@bx ";
+    static final String OPTIONS = "options";
+    static final String EXPORT = "export";
+    static final String QUIT = "quit";
+    static final String READY = "ready";
+    static final String WRITTEN = "written";
+    static final String FAILED = "failed";
+    static final String COST = "cost";
+    static final String DONE = "done";
+
+    private ExportWorker() {
+    }
+
+    /**
+     * Reads the options message, returning the options.
+     */
+    static String[] readOptions(BufferedReader in) throws IOException {
+        final List<String> options = readList(in, OPTIONS);
+        if (options == null) {
+            throw new IOException("no options were sent");
+        }
+        return options.toArray(new String[0]);
+    }
+
+    /**
+     * Exports batches of files as they are requested, until told to quit or
+     * the input ends.
+     *
+     * @param bx the configured batch exporter
+     * @param in the coordinator's commands
+     * @param out the stream that messages are sent to
+     */
+    static void serve(BatchExporter bx, BufferedReader in, PrintWriter out) throws IOException {
+        bx.getExporter().addExportListener((e) -> {
+            if (e.getType() == ExportEvent.Type.WRITTEN) {
+                send(out, WRITTEN, e.getSourceFile().getPath(), String.valueOf(e.getFaceIndex()),
+                        e.getOutputFile() == null ? "" : e.getOutputFile().getPath(),
+                        String.valueOf(e.getBytes()), String.valueOf(e.getWidth()),
+                        String.valueOf(e.getHeight()), String.valueOf(e.getElapsedNanos()));
+            } else if (e.getType() == ExportEvent.Type.FAILED) {
+                send(out, FAILED, e.getSourceFile().getPath(), String.valueOf(e.getFaceIndex()),
+                        e.getMessage() == null ? "" : e.getMessage());
+            }
+        });
+        // measure each file so the coordinator can update its history
+        if (bx.getHistory() == null) {
+            bx.setHistory(new ExportHistory());
+        }
+        send(out, READY);
+        for (;;) {
+            final List<String> paths = readList(in, EXPORT);
+            if (paths == null) {
+                return;
+            }
+            final List<File> files = new ArrayList<>(paths.size());
+            for (String p : paths) {
+                files.add(new File(p));
+            }
+            bx.export(files);
+            for (File f : files) {
+                final String[] cost = bx.getHistory().fields(f);
+                if (cost != null && cost.length >= 5) {
+                    send(out, COST, f.getPath(), cost[1], cost[2], cost[3], cost[4]);
+                }
+            }
+            send(out, DONE);
+        }
+    }
+
+    /**
+     * Reads a message that is followed by a count of lines, returning the
+     * lines. Returns null if the input ends or the quit message is read
+     * instead.
+     */
+    private static List<String> readList(BufferedReader in, String type) throws IOException {
+        final String line = in.readLine();
+        if (line == null || line.equals(PREFIX + QUIT)) {
+            return null;
+        }
+        if (!line.startsWith(PREFIX + type + ' ')) {
+            throw new IOException("unexpected message: " + line);
+        }
+        final int n;
+        try {
+            n = Integer.parseInt(line.substring(PREFIX.length() + type.length() + 1));
+        } catch (NumberFormatException nfe) {
+            throw new IOException("unexpected message: " + line);
+        }
+        final List<String> lines = new ArrayList<>(n);
+        for (int i = 0; i < n; ++i) {
+            final String s = in.readLine();
+            if (s == null) {
+                throw new IOException("input ended during " + type);
+            }
+            lines.add(unescape(s));
+        }
+        return lines;
+    }
+
+    /**
+     * Writes a list message: a count followed by one escaped line per item.
+     */
+    static void sendList(PrintWriter out, String type, List<String> items) {
+        synchronized (out) {
+            out.print(PREFIX + type + ' ' + items.size() + '\n');
+            for (String s : items) {
+                out.print(escape(s) + '\n');
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes a message with tab separated fields.
+     */
+    static void send(PrintWriter out, String type, String... fields) {
+        final StringBuilder b = new StringBuilder(PREFIX).append(type);
+        for (String f : fields) {
+            b.append('\t').append(escape(f));
+        }
+        synchronized (out) {
+            out.print(b.append('\n'));
+            out.flush();
+        }
+    }
+
+    /**
+     * Escapes backslashes, tabs and line breaks so that a value fits in one
+     * field of a line.
+     */
+    static String escape(String s) {
+        final StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                default:
+                    b.append(c);
+            }
+        }
+        return b.toString();
+    }
+
+    static String unescape(String s) {
+        if (s.indexOf('\\') < 0) {
+            return s;
+        }
+        final StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                c = c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c;
+            }
+            b.append(c);
+        }
+        return b.toString();
+    }
+}
@@ -2,27 +2,33 @@ package ca.cgjennings.seplugins.export;
 
 import ca.cgjennings.apps.arkham.BusyDialog;
 import ca.cgjennings.apps.arkham.StrangeEons;
-import ca.cgjennings.apps.arkham.component.ComponentMetadata;
 import ca.cgjennings.apps.arkham.component.GameComponent;
-import ca.cgjennings.apps.arkham.plugins.ScriptMonkey;
 import ca.cgjennings.apps.arkham.sheet.Sheet;
 import ca.cgjennings.apps.arkham.sheet.UndecoratedCardBack;
 import ca.cgjennings.graphics.ImageUtilities;
 import ca.cgjennings.imageio.SimpleImageWriter;
-import java.awt.RenderingHints;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import static resources.Language.string;
-import resources.ResourceKit;
 
 /**
- * Export the faces of a single file.
+ * Export the faces of a single file. An exporter's settings should not be
+ * changed while an export is in progress; once configured, the same exporter
+ * may be used to export several files concurrently (see
+ * {@link BatchExporter}).
  */
 public final class Exporter {
 
@@ -35,25 +41,67 @@ public final class Exporter {
     private boolean bleedMargin = false;
     private String postprocessingCode = "";
     private String postprocessingCodeFile = null;
+    private ExportManifest manifest = null;
+    private MemoryBudget memoryBudget = null;
+    private List<OutputProfile> profiles = Collections.emptyList();
+    private boolean componentCacheEnabled = true;
+    private boolean renderCacheEnabled = true;
+    private long streamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+    private ExportMetrics metrics = null;
+    private PngEncoder pngEncoder = null;
+    private TiffEncoder tiffEncoder = new TiffEncoder();
+    private ArchiveWriter archive = null;
+    private AtlasWriter atlas = null;
+    private PdfWriter pdfDocument = null;
+    private final List<ExportListener> listeners = new CopyOnWriteArrayList<>();
 
     public static class Results {
 
-        private Results() {
-            outputFiles = new LinkedList<>();
-            errors = new LinkedList<>();
+        Results() {
+            outputFiles = new ArrayList<>();
+            errors = new ArrayList<>();
         }
 
-        private void add(File output) {
+        void add(File output) {
+            // every face written to an archive reports the archive file
+            if (!outputFiles.isEmpty() && outputFiles.get(outputFiles.size() - 1).equals(output)) {
+                return;
+            }
             outputFiles.add(output);
         }
 
-        private void add(String error) {
+        void add(String error) {
             errors.add(error);
         }
+
+        void add(Results results) {
+            for (File f : results.outputFiles) {
+                add(f);
+            }
+            errors.addAll(results.errors);
+        }
         public List<File> outputFiles;
         public List<String> errors;
     }
 
+    /**
+     * The format name for exporting faces as pages of a PDF file.
+     *
+     * @see PdfWriter
+     */
+    public static final String FORMAT_PDF = "pdf";
+    /**
+     * The format name for lossless TIFF images.
+     *
+     * @see TiffEncoder
+     */
+    public static final String FORMAT_TIFF = "tif";
+    /**
+     * The format name for WebP images. This format is only supported if a
+     * WebP image writer plug-in is installed.
+     */
+    public static final String FORMAT_WEBP = "webp";
+
     public Exporter() {
     }
 
@@ -62,14 +110,29 @@ public final class Exporter {
     }
 
     public void setFormat(String format) {
+        this.format = checkFormat(format);
+    }
+
+    /**
+     * Returns the format if it is supported, or throws an exception.
+     */
+    static String checkFormat(String format) {
         switch (Objects.requireNonNull(format, "file format")) {
             case SimpleImageWriter.FORMAT_BMP:
             case SimpleImageWriter.FORMAT_GIF:
             case SimpleImageWriter.FORMAT_JPEG:
             case SimpleImageWriter.FORMAT_JPEG2000:
             case SimpleImageWriter.FORMAT_PNG:
-                this.format = format;
-                break;
+            case FORMAT_PDF:
+            case FORMAT_TIFF:
+                return format;
+            case "tiff":
+                return FORMAT_TIFF;
+            case FORMAT_WEBP:
+                if (!WebpWriter.isAvailable()) {
+                    throw new IllegalArgumentException("no WebP image writer is installed");
+                }
+                return format;
             default:
                 throw new IllegalArgumentException("unsupported format: " + format);
         }
@@ -162,61 +225,446 @@ public final class Exporter {
         this.postprocessingCodeFile = file;
     }
 
-    public Results export(File file) {
-        Results results = new Results();
+    /**
+     * Returns the memory budget for images, in bytes, or 0 if there is no
+     * limit.
+     *
+     * @return the memory budget
+     */
+    public long getMemoryBudget() {
+        return memoryBudget == null ? 0L : memoryBudget.getLimit();
+    }
 
-        // ignore deck files
-        ComponentMetadata md = new ComponentMetadata(file);
-        if (md.getMetadataVersion() >= 1 && !md.isDeckLayoutSupported()) {
-            return results;
+    /**
+     * Sets the total amount of memory, in bytes, that may be used by the
+     * images of sheets that are being exported at the same time. Before a
+     * sheet is rendered, its memory needs are estimated from its size and
+     * the export resolution; if they don't fit in what is left of the budget,
+     * it waits until enough other sheets have been written. This limits
+     * how many large sheets are exported concurrently without holding back
+     * small ones.
+     *
+     * @param bytes the memory budget, or 0 for no limit
+     */
+    public void setMemoryBudget(long bytes) {
+        memoryBudget = bytes > 0L ? new MemoryBudget(bytes) : null;
+    }
+
+    public boolean isComponentCacheEnabled() {
+        return componentCacheEnabled;
+    }
+
+    /**
+     * Sets whether loaded components are kept in a cache shared by all
+     * exporters, so that exporting the same files again during a session
+     * does not have to load them again. A cached component is only reused
+     * if its file has the same modification time and size. The cache is not
+     * used while a postprocessing script is set, since the script is given
+     * the component and any change it makes would carry over into later
+     * exports. Enabled by default.
+     *
+     * @param enable if true, use the shared component cache
+     */
+    public void setComponentCacheEnabled(boolean enable) {
+        this.componentCacheEnabled = enable;
+    }
+
+    public boolean isRenderCacheEnabled() {
+        return renderCacheEnabled;
+    }
+
+    /**
+     * Sets whether encoded images are kept in a content-addressed cache
+     * shared by all exporters. Faces with identical pixels and output
+     * settings, such as a card back shared by many components, are then
+     * only encoded once, and the copies are written as hard links where the
+     * file system allows. A face whose component and settings are unchanged
+     * since it was last exported is not rendered again. Enabled by default.
+     *
+     * @param enable if true, use the shared render cache
+     */
+    public void setRenderCacheEnabled(boolean enable) {
+        this.renderCacheEnabled = enable;
+    }
+
+    public long getStreamingThreshold() {
+        return streamingThreshold;
+    }
+
+    /**
+     * Sets the size, in pixels, at which images are encoded straight to
+     * their files. The encoder reads such an image a band of rows at a time
+     * and writes each band out as soon as it is compressed, so that the
+     * encoded image is never held in memory. This applies to images that
+     * are written as separate files, in formats other than PDF; the render
+     * cache is not used for them. The default is 32 megapixels.
+     *
+     * @param pixels the smallest image size to stream, or 0 to never stream
+     */
+    public void setStreamingThreshold(long pixels) {
+        if (pixels < 0L) {
+            throw new IllegalArgumentException("invalid threshold: " + pixels);
+        }
+        this.streamingThreshold = pixels;
+    }
+
+    private static final long DEFAULT_STREAMING_THRESHOLD = 32_000_000L;
+
+    public ExportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets an object that will collect timing and size measurements for
+     * each stage of the export.
+     *
+     * @param metrics the metrics to record to, or null to disable
+     */
+    public void setMetrics(ExportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public PngEncoder getPngEncoder() {
+        return pngEncoder;
+    }
+
+    /**
+     * Sets an encoder to use for PNG images in place of the standard image
+     * writer. This allows the compression level and scanline filter to be
+     * chosen, and compresses large images using several threads.
+     *
+     * @param encoder the encoder to use, or null to use the standard writer
+     */
+    public void setPngEncoder(PngEncoder encoder) {
+        this.pngEncoder = encoder;
+    }
+
+    public TiffEncoder getTiffEncoder() {
+        return tiffEncoder;
+    }
+
+    /**
+     * Sets the encoder used for TIFF images, which chooses the compression
+     * method.
+     *
+     * @param encoder the encoder to use, or null to use the default
+     * LZW encoder
+     */
+    public void setTiffEncoder(TiffEncoder encoder) {
+        this.tiffEncoder = encoder == null ? new TiffEncoder() : encoder;
+    }
+
+    public ArchiveWriter getArchive() {
+        return archive;
+    }
+
+    /**
+     * Sets an archive that exported images will be added to, instead of
+     * writing each image as a file next to its component. The archive file
+     * is reported as the output file of every face. Since the archive only
+     * contains the files exported into it, the manifest is not used while
+     * an archive is set. The caller is responsible for closing the archive
+     * when the export is complete.
+     *
+     * @param archive the archive to write to, or null to write separate
+     * files
+     */
+    public void setArchive(ArchiveWriter archive) {
+        this.archive = archive;
+    }
+
+    public AtlasWriter getAtlas() {
+        return atlas;
+    }
+
+    /**
+     * Sets an atlas that exported faces will be placed in, instead of
+     * writing each face as a separate file. Only the first output profile is
+     * used, and its format is ignored in favour of the atlas's own. As with
+     * archives, the manifest is not used while an atlas is set. The caller is
+     * responsible for closing the atlas when the export is complete.
+     *
+     * @param atlas the atlas to place faces in, or null to write separate
+     * files
+     */
+    public void setAtlas(AtlasWriter atlas) {
+        this.atlas = atlas;
+    }
+
+    public PdfWriter getPdfDocument() {
+        return pdfDocument;
+    }
+
+    /**
+     * Sets a PDF document that faces exported in the PDF format will be
+     * added to as pages, instead of writing each face as a one-page PDF
+     * file. The document file is reported as the output file of those
+     * faces, and as with archives the manifest is not used while a document
+     * is set. The caller is responsible for closing the document when the
+     * export is complete.
+     *
+     * @param document the document to add pages to, or null to write
+     * separate files
+     */
+    public void setPdfDocument(PdfWriter document) {
+        this.pdfDocument = document;
+    }
+
+    /**
+     * Closes and deletes the archive and PDF document, if they are set, and
+     * clears them. This is used when an export is abandoned after its
+     * outputs were opened, so that no partial files are left behind.
+     */
+    void discardOutputs() {
+        if (archive != null) {
+            discard(archive, archive.getFile());
+            archive = null;
+        }
+        if (pdfDocument != null) {
+            discard(pdfDocument, pdfDocument.getFile());
+            pdfDocument = null;
+        }
+    }
+
+    private static void discard(Closeable output, File file) {
+        try {
+            output.close();
+        } catch (IOException ex) {
+            StrangeEons.log.log(Level.WARNING, "unable to close " + file, ex);
+        }
+        if (file != null && file.exists() && !file.delete()) {
+            StrangeEons.log.log(Level.WARNING, "unable to delete partial output {0}", file);
+        }
+    }
+
+    /**
+     * Returns true if an entry will be added to the PDF document rather
+     * than written as a file.
+     */
+    boolean isDocumentPage(PostprocessingEntry entry) {
+        return pdfDocument != null && FORMAT_PDF.equals(entry.format);
+    }
+
+    public ExportManifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Sets a manifest to use for incremental exports. When set, files that
+     * the manifest shows are unchanged since they were last exported with
+     * the same settings are skipped, and files that are exported are added
+     * to the manifest. The caller is responsible for saving the manifest
+     * when the export is complete.
+     *
+     * @param manifest the manifest to use, or null to export every file
+     */
+    public void setManifest(ExportManifest manifest) {
+        this.manifest = manifest;
+    }
+
+    /**
+     * Returns a digest of all of the settings that affect the exported
+     * images.
+     */
+    String getSettingsDigest() {
+        return ExportManifest.hash(toString());
+    }
+
+    /**
+     * Adds a listener that will be notified as each face is exported.
+     *
+     * @param li the listener to add
+     */
+    public void addExportListener(ExportListener li) {
+        listeners.add(Objects.requireNonNull(li, "listener"));
+    }
+
+    /**
+     * Removes a previously added export listener.
+     *
+     * @param li the listener to remove
+     */
+    public void removeExportListener(ExportListener li) {
+        listeners.remove(li);
+    }
+
+    private void fire(ExportEvent.Type type, File source, int index, long started, File output, long bytes, BufferedImage image, String message, long[] stageNanos) {
+        fire(type, source, index, started, output, bytes,
+                image == null ? 0 : image.getWidth(), image == null ? 0 : image.getHeight(),
+                message, stageNanos
+        );
+    }
+
+    private void fire(ExportEvent.Type type, File source, int index, long started, File output, long bytes, int width, int height, String message, long[] stageNanos) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        final long elapsed = started == 0L ? 0L : System.nanoTime() - started;
+        dispatch(new ExportEvent(
+                this, type, source, index, elapsed, output, bytes,
+                width, height, message, stageNanos
+        ));
+    }
+
+    /**
+     * Sends an event to the registered listeners. This is also used to
+     * report events that took place in worker processes.
+     */
+    void dispatch(ExportEvent e) {
+        for (ExportListener li : listeners) {
+            li.exportProgressed(e);
+        }
+    }
+
+    /**
+     * Records the time since {@code start} as the time taken by a stage, in
+     * the metrics and in the entry (if not null).
+     */
+    private void record(PostprocessingEntry entry, ExportMetrics.Stage stage, long start) {
+        final long nanos = System.nanoTime() - start;
+        if (entry != null) {
+            entry.stageNanos[stage.ordinal()] = nanos;
+        }
+        final ExportMetrics m = metrics;
+        if (m != null) {
+            m.record(stage, nanos);
+        }
+    }
+
+    /**
+     * Adds an error to the results and notifies listeners of the failure.
+     *
+     * @param index the face that failed, or -1 if the whole file failed
+     */
+    void fail(Results results, File file, int index, String message) {
+        results.add(message);
+        fire(ExportEvent.Type.FAILED, file, index, 0L, null, 0L, null, message, null);
+    }
+
+    /**
+     * Returns the output profiles set with {@link #setOutputProfiles}; if
+     * the list is empty, a single image is written for each face using this
+     * exporter's format, quality, dimension limit and progressive settings.
+     *
+     * @return an immutable list of output profiles
+     */
+    public List<OutputProfile> getOutputProfiles() {
+        return profiles;
+    }
+
+    /**
+     * Sets a list of profiles that each describe an image to be written for
+     * every face. Each sheet is rendered once, and the image for each
+     * profile is derived from that rendering. If the list is null or empty,
+     * a single image is written using this exporter's format, quality,
+     * dimension limit and progressive settings.
+     *
+     * @param profiles the output profiles to write
+     */
+    public void setOutputProfiles(List<OutputProfile> profiles) {
+        if (profiles == null || profiles.isEmpty()) {
+            this.profiles = Collections.emptyList();
+        } else {
+            this.profiles = Collections.unmodifiableList(new ArrayList<>(profiles));
+        }
+    }
+
+    /**
+     * Returns the profiles that will actually be written.
+     */
+    List<OutputProfile> effectiveProfiles() {
+        if (profiles.isEmpty()) {
+            return Collections.singletonList(new OutputProfile(format, quality, dimensionLimit, progressive, null));
         }
+        return profiles;
+    }
+
+    public Results export(File file) {
+        Results results = new Results();
 
-        // try to read the GC, returning an error on failure
-        GameComponent gc = ResourceKit.getGameComponentFromFile(file, false);
+        GameComponent gc = load(file, results);
         if (gc == null) {
-            results.add(string("app-err-open", file.getName()));
             return results;
         }
-
-        // render and save each sheet in turn
-        Sheet[] sheets = gc.createDefaultSheets();
-        if (sheets == null || sheets.length == 0) {
-            results.add("no sheets to render: " + file.getName());
+        Sheet[] sheets = createSheets(file, gc, results);
+        if (sheets == null) {
             return results;
         }
 
-        for (int i = 0; i < sheets.length; ++i) {
-            if (excludeSimpleFaces && (sheets[i] instanceof UndecoratedCardBack)) {
-                sheets[i] = null;
-                continue;
+        // reserve the atlas cells for the faces that will be rendered
+        final AtlasWriter aw = atlas;
+        int position = 0;
+        if (aw != null) {
+            try {
+                position = aw.reserve(aw.reserveJobs(1), countIncluded(sheets), estimateFirstFace(sheets));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return results;
             }
+        }
 
-            PostprocessingEntry entry = new PostprocessingEntry(this, file, gc, sheets[i], i);
-
-            // remember original size; don't write PPI metadata if it changes
-            final int biWidth = entry.image.getWidth();
-            final int biHeight = entry.image.getHeight();
-
-            applyDimensionLimits(entry);
-            postprocess(entry);
+        // render and save each sheet in turn
+        boolean cancelled = false;
+        for (int i = 0; i < sheets.length; ++i) {
+            List<PostprocessingEntry> entries = Collections.emptyList();
+            final boolean included = !isExcluded(sheets[i]);
+            boolean placed = false;
             try {
-                if (entry.image != null) {
-                    final boolean resized = (entry.image.getWidth() != biWidth) || (entry.image.getHeight() != biHeight);
-                    writeImage(entry, resized, results);
+                final File[] reused = reuse(file, gc, sheets[i], i);
+                if (reused != null) {
+                    for (File f : reused) {
+                        results.add(f);
+                    }
+                }
+                PostprocessingEntry base = reused == null ? render(file, gc, sheets[i], i) : null;
+                if (base != null) {
+                    entries = expand(base);
+                    for (PostprocessingEntry entry : entries) {
+                        process(entry);
+                        if (aw != null) {
+                            results.add(place(entry, position));
+                            placed = true;
+                        } else if (isStreamed(entry)) {
+                            results.add(stream(entry));
+                        } else {
+                            byte[] image = encode(entry);
+                            if (image != null) {
+                                results.add(write(entry, image));
+                            }
+                        }
+                        entry.releaseReservation();
+                    }
                 }
             } catch (Exception ex) {
-                results.add(ex.getLocalizedMessage());
+                fail(results, file, i, ex.getLocalizedMessage());
+                if (aw != null && included && !placed) {
+                    try {
+                        aw.skip(position);
+                    } catch (IOException ioex) {
+                        fail(results, file, i, ioex.getLocalizedMessage());
+                    }
+                }
             } finally {
+                if (included) {
+                    ++position;
+                }
                 // allow GC of image buffers
                 sheets[i] = null;
+                for (PostprocessingEntry entry : entries) {
+                    entry.releaseReservation();
+                }
             }
 
             // check if we are running under a busy dialog, and if we are and
             // it is cancelled, break out early
             if (BusyDialog.getCurrentDialog() != null && BusyDialog.getCurrentDialog().isCancelled()) {
+                cancelled = true;
                 break;
             }
         }
+        if (!cancelled) {
+            completed(file, results);
+        }
         return results;
     }
 
@@ -224,15 +672,322 @@ public final class Exporter {
         return export(new File(file));
     }
 
+    /*
+     * The following methods implement the individual stages of exporting a
+     * file, so that they can be run as a pipeline by BatchExporter:
+     *
+     *   load -> createSheets -> render -> process -> encode -> write
+     */
+
+    /**
+     * Loads the component to be exported from a file. Returns null if the
+     * file should be skipped or could not be loaded; in the latter case an
+     * error is added to the results.
+     */
+    GameComponent load(File file, Results results) {
+        // skip files that are up to date
+        if (isIncremental() && manifest.isCurrent(file, getSettingsDigest())) {
+            return null;
+        }
+
+        // read the GC, or use the cached copy, returning an error on failure;
+        // a script gets a copy of its own, as it could change the component
+        final long start = System.nanoTime();
+        final boolean scripted = postprocessingCode != null && !postprocessingCode.isEmpty();
+        final ComponentCache.CachedComponent loaded = componentCacheEnabled && !scripted
+                ? ComponentCache.getShared().load(file)
+                : ComponentCache.read(file);
+        record(null, ExportMetrics.Stage.LOAD, start);
+        if (loaded == null) {
+            fail(results, file, -1, string("app-err-open", file.getName()));
+            return null;
+        }
+        // if null, ignore deck files
+        return loaded.gc;
+    }
+
+    /**
+     * Returns true if files are skipped or recorded using the manifest. This
+     * is not possible when writing to an archive, atlas, or PDF document,
+     * since they only contain what is exported into them.
+     */
+    private boolean isIncremental() {
+        return manifest != null && archive == null && atlas == null && pdfDocument == null;
+    }
+
+    /**
+     * Called once every sheet of a loaded component has been exported, to
+     * update the manifest.
+     */
+    void completed(File file, Results results) {
+        if (!isIncremental()) {
+            return;
+        }
+        if (results.errors.isEmpty()) {
+            manifest.update(file, getSettingsDigest(), results.outputFiles);
+        } else {
+            manifest.remove(file);
+        }
+    }
+
+    /**
+     * Returns the sheets to render for a component, or null if it has none,
+     * in which case an error is added to the results.
+     */
+    Sheet[] createSheets(File file, GameComponent gc, Results results) {
+        Sheet[] sheets = gc.createDefaultSheets();
+        if (sheets == null || sheets.length == 0) {
+            fail(results, file, -1, "no sheets to render: " + file.getName());
+            return null;
+        }
+        return sheets;
+    }
+
+    /**
+     * Writes every output of a sheet from the render cache, if the sheet
+     * was exported before with the same component state and settings.
+     * Returns the files written, one per output profile, or null if the
+     * sheet must be rendered. Only separate files can be written this way,
+     * and not when a postprocessing script might change what is written.
+     */
+    File[] reuse(File file, GameComponent gc, Sheet sheet, int index) throws IOException {
+        if (!renderCacheEnabled || archive != null || atlas != null || pdfDocument != null
+                || (postprocessingCode != null && !postprocessingCode.isEmpty()) || isExcluded(sheet)) {
+            return null;
+        }
+        final List<OutputProfile> outputs = effectiveProfiles();
+        final String key = sheetKey(gc, sheet, index, renderResolution(sheet));
+        final RenderCache.Encoded[] cached = RenderCache.getShared().getOutputs(key, outputs.size());
+        if (cached == null) {
+            return null;
+        }
+        final byte[][] data = new byte[cached.length][];
+        for (int p = 0; p < cached.length; ++p) {
+            data[p] = cached[p].getData();
+            if (data[p] == null) {
+                return null;
+            }
+        }
+
+        final long started = System.nanoTime();
+        fire(ExportEvent.Type.STARTED, file, index, 0L, null, 0L, null, null, null);
+        final String source = file.getAbsolutePath();
+        final File[] written = new File[cached.length];
+        for (int p = 0; p < cached.length; ++p) {
+            final long start = System.nanoTime();
+            final OutputProfile profile = outputs.get(p);
+            written[p] = new File(PostprocessingEntry.exportPath(source, index, profile.getSuffix(), profile.getFormat()));
+            AtomicFileWriter.write(written[p], data[p], cached[p].linkSource());
+            cached[p].written(written[p]);
+            record(null, ExportMetrics.Stage.WRITE, start);
+            if (metrics != null) {
+                metrics.recordReuse();
+                metrics.recordWrite(data[p].length);
+            }
+            fire(ExportEvent.Type.WRITTEN, file, index, started, written[p], data[p].length, cached[p].width, cached[p].height, null, null);
+        }
+        return written;
+    }
+
+    /**
+     * Returns the render cache key for a sheet, or null if the component's
+     * state cannot be hashed.
+     */
+    private String sheetKey(GameComponent gc, Sheet sheet, int index, double renderPpi) {
+        return RenderCache.getShared().sheetKey(gc, index,
+                sheet.getClass().getName() + ';' + renderPpi + ';' + bleedMargin + ';'
+                + effectiveProfiles() + ';' + pngEncoder + ';' + tiffEncoder + ';' + postprocessingCode);
+    }
+
+    /**
+     * Renders a single sheet, returning an entry that describes the result,
+     * or null if the sheet is excluded from export. If a memory budget is
+     * set, this waits until the sheet's memory can be reserved; the caller
+     * must release the reservation once the entry has been written or
+     * abandoned.
+     */
+    @SuppressWarnings("unchecked")
+    PostprocessingEntry render(File file, GameComponent gc, Sheet sheet, int index) {
+        if (isExcluded(sheet)) {
+            return null;
+        }
+        final double renderPpi = renderResolution(sheet);
+        final MemoryBudget mb = memoryBudget;
+        long reserved = 0L;
+        if (mb != null) {
+            try {
+                reserved = mb.acquire(estimateMemory(sheet, renderPpi));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("interrupted while waiting for memory");
+            }
+        }
+        try {
+            final long started = System.nanoTime();
+            fire(ExportEvent.Type.STARTED, file, index, 0L, null, 0L, null, null, null);
+            PostprocessingEntry entry = new PostprocessingEntry(this, file, gc, sheet, index, effectiveProfiles().get(0), renderPpi);
+            entry.started = started;
+            if (renderCacheEnabled) {
+                entry.sheetKey = sheetKey(gc, sheet, index, renderPpi);
+            }
+            entry.setReservation(mb, reserved);
+            record(entry, ExportMetrics.Stage.RENDER, started);
+            if (metrics != null) {
+                metrics.recordRender((long) entry.image.getWidth() * entry.image.getHeight());
+            }
+            fire(ExportEvent.Type.RENDERED, file, index, started, null, 0L, entry.image, null, null);
+            return entry;
+        } catch (RuntimeException | Error ex) {
+            if (mb != null) {
+                mb.release(reserved);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns true if a sheet will not be rendered because of the exporter's
+     * settings.
+     */
+    boolean isExcluded(Sheet<?> sheet) {
+        return excludeSimpleFaces && (sheet instanceof UndecoratedCardBack);
+    }
+
+    /**
+     * Returns the number of sheets that will be rendered.
+     */
+    int countIncluded(Sheet[] sheets) {
+        int n = 0;
+        for (Sheet<?> sheet : sheets) {
+            if (!isExcluded(sheet)) {
+                ++n;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Estimates the final size of the first included face, after the
+     * dimension limit of the first output profile is applied. Returns null
+     * if every face is excluded. This gives an atlas a cell size that does
+     * not depend on which face happens to be finished first.
+     */
+    Dimension estimateFirstFace(Sheet[] sheets) {
+        for (Sheet<?> sheet : sheets) {
+            if (!isExcluded(sheet)) {
+                final Dimension d = PostprocessingEntry.estimateSize(sheet, ppi, bleedMargin);
+                final int limit = effectiveProfiles().get(0).getDimensionLimit();
+                if (limit > 0 && (d.width > limit || d.height > limit)) {
+                    final float scale = ImageUtilities.idealBoundingScaleForImage(limit, limit, d.width, d.height);
+                    d.width = Math.max(1, Math.min(limit, Math.round(d.width * scale)));
+                    d.height = Math.max(1, Math.min(limit, Math.round(d.height * scale)));
+                }
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the total pixel area that the included sheets will be rendered
+     * at.
+     */
+    long estimatePixels(Sheet[] sheets) {
+        long pixels = 0L;
+        for (Sheet<?> sheet : sheets) {
+            if (!isExcluded(sheet)) {
+                Dimension d = PostprocessingEntry.estimateSize(sheet, renderResolution(sheet), bleedMargin);
+                pixels += (long) d.width * d.height;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Estimates the memory needed to export a sheet: the rendered image plus
+     * one more image of the same size for each output profile, to allow for
+     * resampling or other processing.
+     */
+    private long estimateMemory(Sheet<?> sheet, double renderPpi) {
+        Dimension d = PostprocessingEntry.estimateSize(sheet, renderPpi, bleedMargin);
+        return (1L + effectiveProfiles().size()) * 4L * d.width * d.height;
+    }
+
+    /**
+     * Returns the resolution to render a sheet at. If every output profile
+     * has a dimension limit, there is no point rendering the sheet larger
+     * than the largest limit, so the resolution is reduced to render it at
+     * slightly more than that size. The limit is then met by resampling away
+     * the small remainder, which keeps the edges of the final image crisp.
+     */
+    private double renderResolution(Sheet<?> sheet) {
+        int limit = 0;
+        for (OutputProfile p : effectiveProfiles()) {
+            if (p.getDimensionLimit() == 0) {
+                return ppi;
+            }
+            limit = Math.max(limit, p.getDimensionLimit());
+        }
+        final Dimension d = PostprocessingEntry.estimateSize(sheet, ppi, bleedMargin);
+        final int largest = Math.max(d.width, d.height);
+        if (largest <= limit) {
+            return ppi;
+        }
+        // the headroom also covers an estimate that is slightly too large
+        return Math.min(ppi, ppi * limit * RENDER_HEADROOM / largest);
+    }
+
+    private static final double RENDER_HEADROOM = 1.125d;
+
+    /**
+     * Returns a list of entries, one for each output profile, for a newly
+     * rendered sheet. The first entry is the rendered entry itself. The
+     * others share its image, unless a postprocessing script might modify
+     * the image, in which case they get their own copy.
+     */
+    List<PostprocessingEntry> expand(PostprocessingEntry base) {
+        final List<OutputProfile> outputs = effectiveProfiles();
+        if (outputs.size() == 1 || atlas != null) {
+            return Collections.singletonList(base);
+        }
+        final boolean copy = postprocessingCode != null && !postprocessingCode.isEmpty();
+        List<PostprocessingEntry> entries = new ArrayList<>(outputs.size());
+        entries.add(base);
+        for (int p = 1; p < outputs.size(); ++p) {
+            BufferedImage bi = base.image;
+            if (copy) {
+                bi = new BufferedImage(bi.getColorModel(), bi.copyData(null), bi.isAlphaPremultiplied(), null);
+            }
+            entries.add(new PostprocessingEntry(base, outputs.get(p), p, bi));
+        }
+        return entries;
+    }
+
+    /**
+     * Applies dimension limits and runs the postprocessing script on a
+     * rendered sheet.
+     */
+    void process(PostprocessingEntry entry) {
+        applyDimensionLimits(entry);
+        if (postprocessingCode != null && !postprocessingCode.isEmpty()) {
+            final long start = System.nanoTime();
+            postprocess(entry);
+            record(entry, ExportMetrics.Stage.POSTPROCESS, start);
+        }
+    }
+
     private void applyDimensionLimits(PostprocessingEntry entry) {
         final BufferedImage bi = entry.image;
+        final int dimensionLimit = entry.dimensionLimit;
         if (dimensionLimit > 0 && (bi.getWidth() > dimensionLimit || bi.getHeight() > dimensionLimit)) {
+            final long start = System.nanoTime();
             float scale = ImageUtilities.idealBoundingScaleForImage(dimensionLimit, dimensionLimit, bi.getWidth(), bi.getHeight());
-            entry.image = ImageUtilities.resample(
-                    bi, scale, true,
-                    RenderingHints.VALUE_INTERPOLATION_BICUBIC,
-                    RenderingHints.VALUE_INTERPOLATION_BICUBIC
+            entry.image = Downsampler.resize(
+                    bi,
+                    Math.max(1, Math.min(dimensionLimit, Math.round(bi.getWidth() * scale))),
+                    Math.max(1, Math.min(dimensionLimit, Math.round(bi.getHeight() * scale)))
             );
+            record(entry, ExportMetrics.Stage.RESIZE, start);
         }
     }
 
@@ -240,43 +995,226 @@ public final class Exporter {
         if (postprocessingCode == null || postprocessingCode.isEmpty()) {
             return;
         }
+        postprocessor().process(entry);
+    }
+
+    /**
+     * Returns the postprocessor for the current script, creating it if the
+     * script has changed since it was last used.
+     */
+    private synchronized Postprocessor postprocessor() {
+        if (postprocessor == null || !postprocessor.matches(postprocessingCode, postprocessingCodeFile)) {
+            postprocessor = new Postprocessor(postprocessingCode, postprocessingCodeFile);
+        }
+        return postprocessor;
+    }
+    private Postprocessor postprocessor;
+
+    /**
+     * Encodes the processed image in the requested format. Returns null if
+     * the entry has no image or export path and should not be written.
+     */
+    byte[] encode(PostprocessingEntry entry) throws IOException {
+        if (entry.image == null || entry.exportPath == null || entry.exportPath.isEmpty()) {
+            return null;
+        }
 
-        ScriptMonkey sm = new ScriptMonkey("Postprocessor");
-        if (postprocessingCodeFile != null) {
-            sm.setInternalFileName(postprocessingCodeFile);
+        final boolean resized = isResized(entry);
+        if (!renderCacheEnabled) {
+            return encode(entry, resized);
         }
-        sm.bind("bulkItem", entry);
-        sm.bind("Component", entry.gc);
-        sm.eval("useLibrary('imageutils');");
-        sm.eval("importClass(arkham.sheet.RenderTarget);");
-        sm.eval("importClass(ca.cgjennings.graphics.ImageUtilities);");
-        sm.eval("importPackage(ca.cgjennings.graphics.filters);");
 
-        sm.eval(postprocessingCode);
+        // faces with the same pixels and settings share one encoding
+        final long start = System.nanoTime();
+        final RenderCache cache = RenderCache.getShared();
+        final String key = RenderCache.imageKey(entry.image,
+                entry.format + ';' + entry.quality + ';' + entry.progressive + ';' + (resized ? 0d : entry.ppi)
+                + ';' + pngEncoder + ';' + tiffEncoder + ';' + entry.ppi + ';' + entry.renderedWidth + ';' + entry.bleedMargin
+                + ';' + isDocumentPage(entry));
+        RenderCache.Encoded cached = cache.get(key);
+        byte[] data = cached == null ? null : cached.getData();
+        if (data != null) {
+            record(entry, ExportMetrics.Stage.ENCODE, start);
+            if (metrics != null) {
+                metrics.recordReuse();
+            }
+        } else {
+            data = encode(entry, resized);
+            cached = cache.put(key, data, entry.image.getWidth(), entry.image.getHeight());
+        }
+        entry.encoded = cached;
+        if (entry.sheetKey != null) {
+            cache.putOutput(entry.sheetKey, entry.profileIndex, effectiveProfiles().size(), key);
+        }
+        return data;
     }
 
-    private void writeImage(PostprocessingEntry entry, boolean replaced, Results results) throws IOException {
-        if (entry.exportPath == null || entry.exportPath.isEmpty()) {
+    private byte[] encode(PostprocessingEntry entry, boolean resized) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            if (FORMAT_PDF.equals(entry.format)) {
+                final byte[] page = PdfWriter.encodePage(entry);
+                return isDocumentPage(entry) ? page : PdfWriter.singlePage(page);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(256 * 1024);
+            encode(entry, resized, out);
+            return out.toByteArray();
+        } finally {
+            record(entry, ExportMetrics.Stage.ENCODE, start);
+        }
+    }
+
+    /**
+     * Encodes an image in a format other than PDF to a stream.
+     */
+    private void encode(PostprocessingEntry entry, boolean resized, OutputStream out) throws IOException {
+        if (pngEncoder != null && SimpleImageWriter.FORMAT_PNG.equals(entry.format)) {
+            pngEncoder.write(entry.image, resized ? 0d : entry.ppi, out);
+            return;
+        }
+        if (FORMAT_TIFF.equals(entry.format)) {
+            tiffEncoder.write(entry.image, resized ? 0d : entry.ppi, out);
+            return;
+        }
+        if (FORMAT_WEBP.equals(entry.format)) {
+            WebpWriter.write(entry.image, entry.quality, out);
             return;
         }
 
-        SimpleImageWriter wr = new SimpleImageWriter(entry.format);
+        final ImageWriterPool pool = ImageWriterPool.getShared();
+        final ImageWriterPool.PooledWriter wr = pool.take(
+                entry.format, entry.quality, entry.progressive, resized ? 0d : entry.ppi
+        );
+        boolean ok = false;
         try {
-            wr.setProgressiveScan(progressive);
-            wr.setCompressionQuality(wr.isLossless() ? 1f : (float) entry.quality);
-            if (!replaced) {
-                wr.setPixelsPerInch((float) ppi);
-            }
-            final File output = new File(entry.exportPath);
-            wr.write(entry.image, output);
-            results.add(output);
+            wr.writer.write(entry.image, out);
+            ok = true;
         } finally {
-            wr.dispose();
+            // a writer that failed may be left in an unknown state
+            if (ok) {
+                pool.give(wr);
+            } else {
+                pool.discard(wr);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the processed image is not the size it was rendered
+     * at, in which case PPI metadata is not written.
+     */
+    private static boolean isResized(PostprocessingEntry entry) {
+        return (entry.image.getWidth() != entry.renderedWidth)
+                || (entry.image.getHeight() != entry.renderedHeight);
+    }
+
+    /**
+     * Returns true if a processed image is large enough that it should be
+     * encoded straight to its file with {@link #stream}, instead of being
+     * encoded in memory and then written.
+     */
+    boolean isStreamed(PostprocessingEntry entry) {
+        return streamingThreshold > 0L && entry.image != null
+                && entry.exportPath != null && !entry.exportPath.isEmpty()
+                && archive == null && !FORMAT_PDF.equals(entry.format)
+                && (long) entry.image.getWidth() * entry.image.getHeight() >= streamingThreshold;
+    }
+
+    /**
+     * Encodes a processed image straight to the entry's export path,
+     * returning the file that was written. As with {@link #write}, the file
+     * is replaced atomically and is not touched if it already holds the
+     * same image.
+     */
+    File stream(PostprocessingEntry entry) throws IOException {
+        final long start = System.nanoTime();
+        final File output = new File(entry.exportPath);
+        final long bytes;
+        try (AtomicFileWriter.Output out = AtomicFileWriter.open(output)) {
+            encode(entry, isResized(entry), out);
+            bytes = out.size();
+            out.commit();
+        }
+        record(entry, ExportMetrics.Stage.ENCODE, start);
+        if (metrics != null) {
+            metrics.recordWrite(bytes);
+        }
+        fire(ExportEvent.Type.WRITTEN, new File(entry.sourcePath), entry.index, entry.started, output, bytes, entry.image, null, entry.stageNanos);
+        return output;
+    }
+
+    /**
+     * Places a processed image in the atlas at the given position, returning
+     * the file of the atlas page it was placed on.
+     */
+    File place(PostprocessingEntry entry, int position) throws IOException {
+        final long start = System.nanoTime();
+        atlas.place(position, entry.sourcePath, entry.index, entry.image, memoryBudget);
+        record(entry, ExportMetrics.Stage.WRITE, start);
+        final File page = atlas.pageFile(position);
+        fire(ExportEvent.Type.WRITTEN, new File(entry.sourcePath), entry.index, entry.started, page, 0L, entry.image, null, entry.stageNanos);
+        return page;
+    }
+
+    /**
+     * Writes an encoded image to the entry's export path, returning the
+     * file that was written. The file is replaced atomically, and is not
+     * touched if it already holds the same image. If an archive is set,
+     * the image is added to the archive instead and the archive file is
+     * returned. Likewise, a page for the PDF document is added to it and
+     * the document file is returned.
+     */
+    File write(PostprocessingEntry entry, byte[] image) throws IOException {
+        return write(entry, image, -1, 0);
+    }
+
+    /**
+     * Writes an encoded image as for {@link #write(PostprocessingEntry, byte[])}.
+     * If the job number is not negative, an image added to an archive or
+     * PDF document is added at the given job and slot position (see
+     * {@link OrderedOutput}) rather than immediately. Job numbers are
+     * reserved from the archive, or from the document for entries where
+     * {@link #isDocumentPage} is true.
+     */
+    File write(PostprocessingEntry entry, byte[] image, int job, int slot) throws IOException {
+        final long start = System.nanoTime();
+        File output = new File(entry.exportPath);
+        final ArchiveWriter aw = archive;
+        final PdfWriter pdf = pdfDocument;
+        if (pdf != null && FORMAT_PDF.equals(entry.format)) {
+            if (job < 0) {
+                pdf.addPage(image);
+            } else {
+                pdf.order().put(job, slot, null, image);
+            }
+            output = pdf.getFile();
+        } else if (aw == null) {
+            final RenderCache.Encoded cached = entry.encoded;
+            if (cached == null) {
+                AtomicFileWriter.write(output, image);
+            } else {
+                AtomicFileWriter.write(output, image, cached.linkSource());
+                cached.written(output);
+            }
+        } else {
+            final String name = aw.entryName(output);
+            if (job < 0) {
+                aw.write(name, image);
+            } else {
+                aw.order().put(job, slot, name, image);
+            }
+            output = aw.getFile();
+        }
+        record(entry, ExportMetrics.Stage.WRITE, start);
+        if (metrics != null) {
+            metrics.recordWrite(image.length);
         }
+        fire(ExportEvent.Type.WRITTEN, new File(entry.sourcePath), entry.index, entry.started, output, image.length, entry.image, null, entry.stageNanos);
+        return output;
     }
 
     @Override
     public String toString() {
-        return "Exporter{" + "format=" + format + ", progressive=" + progressive + ", quality=" + quality + ", ppi=" + ppi + ", dimensionLimit=" + dimensionLimit + ", excludeSimpleFaces=" + excludeSimpleFaces + ", synthesizeBleedMargin=" + bleedMargin + ", postprocessingCode=" + postprocessingCode + '}';
+        return "Exporter{" + "format=" + format + ", progressive=" + progressive + ", quality=" + quality + ", ppi=" + ppi + ", dimensionLimit=" + dimensionLimit + ", excludeSimpleFaces=" + excludeSimpleFaces + ", synthesizeBleedMargin=" + bleedMargin + ", postprocessingCode=" + postprocessingCode + ", profiles=" + profiles + ", pngEncoder=" + pngEncoder + ", tiffEncoder=" + tiffEncoder + '}';
     }
 }
@@ -0,0 +1,173 @@
+package ca.cgjennings.seplugins.export;
+
+import ca.cgjennings.imageio.SimpleImageWriter;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A pool of configured image writers, so that the writer lookup and codec
+ * setup is not repeated for every face that is encoded. Writers are keyed by
+ * format and by every setting applied to them, so a writer taken from the
+ * pool is always configured exactly as if it had just been created. Each
+ * writer is used by one thread at a time: it is {@linkplain #take taken}
+ * from the pool, used, and then {@linkplain #give given back}. A writer that
+ * failed to write an image should be {@linkplain #discard discarded} instead,
+ * since its state is unknown.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class ImageWriterPool {
+
+    private static final ImageWriterPool shared = new ImageWriterPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors())
+    );
+
+    /**
+     * Returns the pool shared by all exporters.
+     *
+     * @return the shared pool
+     */
+    static ImageWriterPool getShared() {
+        return shared;
+    }
+
+    private final int idleLimit;
+    private final Map<Key, ArrayDeque<PooledWriter>> idle = new HashMap<>();
+
+    /**
+     * Creates a new pool.
+     *
+     * @param idleLimit the maximum number of idle writers kept for each
+     * combination of settings
+     */
+    ImageWriterPool(int idleLimit) {
+        if (idleLimit < 1) {
+            throw new IllegalArgumentException("idleLimit: " + idleLimit);
+        }
+        this.idleLimit = idleLimit;
+    }
+
+    /**
+     * Returns a writer with the requested settings, reusing an idle writer
+     * if one is available.
+     *
+     * @param format the image format
+     * @param quality the compression quality, ignored for lossless formats
+     * @param progressive whether to use progressive scan
+     * @param ppi the resolution to write as metadata, or 0 to write none
+     * @return a writer configured with the requested settings
+     */
+    PooledWriter take(String format, double quality, boolean progressive, double ppi) {
+        final Key key = new Key(format, (float) quality, progressive, (float) ppi);
+        synchronized (this) {
+            ArrayDeque<PooledWriter> q = idle.get(key);
+            if (q != null && !q.isEmpty()) {
+                return q.pop();
+            }
+        }
+
+        SimpleImageWriter wr = new SimpleImageWriter(format);
+        wr.setProgressiveScan(progressive);
+        wr.setCompressionQuality(wr.isLossless() ? 1f : key.quality);
+        if (key.ppi > 0f) {
+            wr.setPixelsPerInch(key.ppi);
+        }
+        return new PooledWriter(key, wr);
+    }
+
+    /**
+     * Returns a writer to the pool after a successful write. If the pool
+     * already holds enough idle writers with the same settings, the writer is
+     * disposed of.
+     *
+     * @param writer the writer to return
+     */
+    void give(PooledWriter writer) {
+        synchronized (this) {
+            ArrayDeque<PooledWriter> q = idle.get(writer.key);
+            if (q == null) {
+                q = new ArrayDeque<>();
+                idle.put(writer.key, q);
+            }
+            if (q.size() < idleLimit) {
+                q.push(writer);
+                return;
+            }
+        }
+        writer.writer.dispose();
+    }
+
+    /**
+     * Disposes of a writer without returning it to the pool.
+     *
+     * @param writer the writer to dispose of
+     */
+    void discard(PooledWriter writer) {
+        writer.writer.dispose();
+    }
+
+    /**
+     * Disposes of all idle writers.
+     */
+    void clear() {
+        final ArrayDeque<PooledWriter> all = new ArrayDeque<>();
+        synchronized (this) {
+            for (ArrayDeque<PooledWriter> q : idle.values()) {
+                all.addAll(q);
+            }
+            idle.clear();
+        }
+        for (PooledWriter w : all) {
+            w.writer.dispose();
+        }
+    }
+
+    /**
+     * A writer on loan from the pool.
+     */
+    static final class PooledWriter {
+
+        private final Key key;
+        final SimpleImageWriter writer;
+
+        private PooledWriter(Key key, SimpleImageWriter writer) {
+            this.key = key;
+            this.writer = writer;
+        }
+    }
+
+    private static final class Key {
+
+        private final String format;
+        private final float quality;
+        private final boolean progressive;
+        private final float ppi;
+
+        Key(String format, float quality, boolean progressive, float ppi) {
+            this.format = format;
+            this.quality = quality;
+            this.progressive = progressive;
+            this.ppi = Math.max(0f, ppi);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return format.equals(other.format) && quality == other.quality
+                    && progressive == other.progressive && ppi == other.ppi;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(format, quality, progressive, ppi);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ca.cgjennings.seplugins.export;
+
+/**
+ * Limits the total memory used by images that are being exported at the
+ * same time. Before a sheet is rendered, the memory its image will need is
+ * reserved from the budget; if there is not enough left, rendering waits
+ * until other images have been written and their memory released. A request
+ * that is larger than the entire budget is allowed once nothing else is
+ * reserved, so that large sheets are exported one at a time rather than
+ * not at all.
+ *
+ * <p>
+ * Memory that stays allocated until work that depends on it is finished,
+ * such as an atlas page that is only written once all of its cells are
+ * filled, is {@linkplain #pin pinned}. Pinned memory counts against the
+ * budget, but a request that does not fit is still allowed once nothing
+ * else is reserved, since the pinned memory may only be released by the
+ * work that is waiting.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class MemoryBudget {
+
+    private final long limit;
+    private long reserved;
+    private long pinned;
+
+    /**
+     * Creates a new budget.
+     *
+     * @param limit the maximum number of bytes that can be reserved
+     */
+    MemoryBudget(long limit) {
+        if (limit <= 0L) {
+            throw new IllegalArgumentException("limit: " + limit);
+        }
+        this.limit = limit;
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Reserves memory from the budget, waiting until enough is available.
+     *
+     * @param bytes the number of bytes needed
+     * @return the number of bytes reserved, which must later be passed to
+     * {@link #release}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized long acquire(long bytes) throws InterruptedException {
+        bytes = Math.max(0L, Math.min(bytes, limit));
+        while (reserved + bytes > limit && reserved > pinned) {
+            wait();
+        }
+        reserved += bytes;
+        return bytes;
+    }
+
+    /**
+     * Returns previously reserved memory to the budget.
+     *
+     * @param bytes the number of bytes returned by {@link #acquire}
+     */
+    synchronized void release(long bytes) {
+        if (bytes > 0L) {
+            reserved = Math.max(0L, reserved - bytes);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Charges memory to the budget without waiting for it to be available.
+     *
+     * @param bytes the number of bytes to charge, which must later be passed
+     * to {@link #unpin}
+     */
+    synchronized void pin(long bytes) {
+        if (bytes > 0L) {
+            reserved += bytes;
+            pinned += bytes;
+        }
+    }
+
+    /**
+     * Returns pinned memory to the budget.
+     *
+     * @param bytes the number of bytes passed to {@link #pin}
+     */
+    synchronized void unpin(long bytes) {
+        if (bytes > 0L) {
+            pinned = Math.max(0L, pinned - bytes);
+            reserved = Math.max(0L, reserved - bytes);
+            notifyAll();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryBudget{" + "limit=" + limit + ", reserved=" + reserved + ", pinned=" + pinned + '}';
+    }
+}
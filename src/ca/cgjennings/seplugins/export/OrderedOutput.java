@@ -0,0 +1,119 @@
+package ca.cgjennings.seplugins.export;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Puts entries that may be finished out of order back in order before
+ * writing them to a single output, such as an archive or PDF document. Jobs
+ * are numbered from 0 in the order their entries should appear, and entries
+ * within a job are ordered by slot. An entry is written as soon as every
+ * entry before it has been written; jobs must be marked as
+ * {@linkplain #finish finished} so that missing slots can be skipped.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class OrderedOutput {
+
+    /**
+     * Receives entries in order.
+     */
+    interface Sink {
+
+        void write(String name, byte[] data) throws IOException;
+    }
+
+    private final Sink sink;
+    // entries that are waiting for earlier entries to be written, keyed by
+    // job and slot
+    private final TreeMap<Long, Pending> pending = new TreeMap<>();
+    private final Set<Integer> finishedJobs = new HashSet<>();
+    private int nextJob;
+    private int nextSlot;
+    private int jobCount;
+
+    OrderedOutput(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Reserves a range of job numbers, returning the first number in the
+     * range.
+     */
+    synchronized int reserveJobs(int count) {
+        final int first = jobCount;
+        jobCount += count;
+        return first;
+    }
+
+    /**
+     * Adds an entry that belongs at a given job and slot position.
+     */
+    synchronized void put(int job, int slot, String name, byte[] data) throws IOException {
+        pending.put(key(job, slot), new Pending(name, data));
+        drain();
+    }
+
+    /**
+     * Marks a job as finished: it will not put any more entries.
+     */
+    synchronized void finish(int job) throws IOException {
+        finishedJobs.add(job);
+        drain();
+    }
+
+    /**
+     * Writes any entries still waiting for earlier entries, in order.
+     */
+    synchronized void flush() throws IOException {
+        try {
+            for (Pending p : pending.values()) {
+                sink.write(p.name, p.data);
+            }
+        } finally {
+            pending.clear();
+        }
+    }
+
+    private void drain() throws IOException {
+        for (;;) {
+            final Map.Entry<Long, Pending> first = pending.firstEntry();
+            if (first != null && first.getKey() == key(nextJob, nextSlot)) {
+                pending.pollFirstEntry();
+                ++nextSlot;
+                sink.write(first.getValue().name, first.getValue().data);
+            } else if (finishedJobs.remove(nextJob)) {
+                // the job has ended; write what is left of it in slot order
+                final Iterator<Pending> it = pending.subMap(key(nextJob, 0), key(nextJob + 1, 0)).values().iterator();
+                while (it.hasNext()) {
+                    final Pending p = it.next();
+                    it.remove();
+                    sink.write(p.name, p.data);
+                }
+                ++nextJob;
+                nextSlot = 0;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static long key(int job, int slot) {
+        return ((long) job << 32) | (slot & 0xffff_ffffL);
+    }
+
+    private static final class Pending {
+
+        final String name;
+        final byte[] data;
+
+        Pending(String name, byte[] data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ca.cgjennings.seplugins.export;
+
+import java.util.Objects;
+
+/**
+ * Describes one image file to be written for each exported face. An
+ * {@link Exporter} can be given several profiles so that, for example, a
+ * print image, a web image and a thumbnail are all written from a single
+ * rendering of each sheet. Each profile's suffix is added to the base name
+ * of the files it writes (before the extension) to keep them apart.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class OutputProfile {
+
+    private final String format;
+    private final double quality;
+    private final int dimensionLimit;
+    private final boolean progressive;
+    private final String suffix;
+
+    /**
+     * Creates a new output profile.
+     *
+     * @param format the image format, as accepted by
+     * {@link Exporter#setFormat}
+     * @param quality the image quality, from 0 to 1
+     * @param dimensionLimit the maximum width and height, or 0 for no limit
+     * @param progressive whether to use progressive scan, if supported
+     * @param suffix the suffix added to file names, or null for none
+     */
+    public OutputProfile(String format, double quality, int dimensionLimit, boolean progressive, String suffix) {
+        this.format = Exporter.checkFormat(format);
+        if (quality < 0d || quality > 1d) {
+            throw new IllegalArgumentException("invalid quality: " + quality);
+        }
+        this.quality = quality;
+        this.dimensionLimit = Math.max(0, dimensionLimit);
+        this.progressive = progressive;
+        this.suffix = suffix == null ? "" : suffix;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public double getQuality() {
+        return quality;
+    }
+
+    public int getDimensionLimit() {
+        return dimensionLimit;
+    }
+
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    public String getSuffix() {
+        return suffix;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof OutputProfile)) {
+            return false;
+        }
+        final OutputProfile other = (OutputProfile) obj;
+        return format.equals(other.format) && quality == other.quality
+                && dimensionLimit == other.dimensionLimit
+                && progressive == other.progressive && suffix.equals(other.suffix);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(format, quality, dimensionLimit, progressive, suffix);
+    }
+
+    @Override
+    public String toString() {
+        return "OutputProfile{" + "format=" + format + ", quality=" + quality + ", dimensionLimit=" + dimensionLimit + ", progressive=" + progressive + ", suffix=" + suffix + '}';
+    }
+}
@@ -0,0 +1,377 @@
+package ca.cgjennings.seplugins.export;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes exported faces as the pages of a PDF file, one face per page, with
+ * each page sized to match the face at the resolution it was rendered at.
+ * When the exporter's format is {@link Exporter#FORMAT_PDF}, each face is
+ * encoded as a page image: JPEG (DCT) data if the quality is less than 1,
+ * otherwise lossless Flate data with a soft mask for any transparency. If a
+ * bleed margin was requested, the page's trim box excludes it.
+ *
+ * <p>
+ * Pages are written to the file as they are added and only their positions
+ * are kept, so memory use does not grow with the number of pages. If a
+ * document is set with {@link Exporter#setPdfDocument}, every face is added
+ * to it; otherwise, each face is written as its own one-page PDF file.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class PdfWriter implements Closeable {
+
+    /**
+     * The bleed margin added by the renderers, in points.
+     */
+    private static final double BLEED = 9d;
+
+    private final File file;
+    private final CountingStream out;
+    // byte offsets of objects, indexed by object number - 1
+    private final List<Long> offsets = new ArrayList<>();
+    private final List<Integer> pages = new ArrayList<>();
+    private final OrderedOutput order = new OrderedOutput((name, page) -> addPage(page));
+    private boolean closed;
+
+    /**
+     * Creates a new PDF document. An existing file is replaced.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be created
+     */
+    public PdfWriter(File file) throws IOException {
+        this(file, new FileOutputStream(file));
+    }
+
+    private PdfWriter(File file, OutputStream stream) throws IOException {
+        this.file = file;
+        out = new CountingStream(new BufferedOutputStream(stream, 64 * 1024));
+        out.write("%PDF-1.4\n%\u00e2\u00e3\u00cf\u00d3\n".getBytes(StandardCharsets.ISO_8859_1));
+        // objects 1 and 2 are the catalog and page tree, written on close
+        offsets.add(0L);
+        offsets.add(0L);
+    }
+
+    /**
+     * Returns the PDF file being written.
+     *
+     * @return the document file, or null for a one-page document written to
+     * memory
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the number of pages added so far.
+     *
+     * @return the page count
+     */
+    public synchronized int getPageCount() {
+        return pages.size();
+    }
+
+    /**
+     * Encodes the image of a processed entry as a page, in the form accepted
+     * by {@link #addPage}.
+     */
+    static byte[] encodePage(PostprocessingEntry entry) throws IOException {
+        final BufferedImage bi = entry.image;
+        final int w = bi.getWidth();
+        final int h = bi.getHeight();
+
+        // the image may have been resized since it was rendered
+        final double ppi = entry.renderedWidth > 0 ? entry.ppi * w / entry.renderedWidth : entry.ppi;
+        final double bleed = entry.bleedMargin ? BLEED : 0d;
+
+        byte[] data, mask = null;
+        boolean dct = entry.quality < 1d;
+        if (dct) {
+            data = jpeg(bi, entry.quality);
+        } else {
+            final boolean alpha = bi.getColorModel().hasAlpha() && !isOpaque(bi);
+            final ByteArrayOutputStream rgb = new ByteArrayOutputStream(w * h);
+            final ByteArrayOutputStream a = alpha ? new ByteArrayOutputStream(w * h / 4) : null;
+            final Deflater rgbDeflater = new Deflater(6);
+            final Deflater alphaDeflater = alpha ? new Deflater(6) : null;
+            try {
+                try (DeflaterOutputStream rgbOut = new DeflaterOutputStream(rgb, rgbDeflater, 64 * 1024);
+                        DeflaterOutputStream alphaOut = alpha ? new DeflaterOutputStream(a, alphaDeflater, 64 * 1024) : null) {
+                    final int[] row = new int[w];
+                    final byte[] rgbRow = new byte[w * 3];
+                    final byte[] alphaRow = new byte[w];
+                    for (int y = 0; y < h; ++y) {
+                        bi.getRGB(0, y, w, 1, row, 0, w);
+                        for (int x = 0, i = 0; x < w; ++x) {
+                            final int p = row[x];
+                            rgbRow[i++] = (byte) (p >> 16);
+                            rgbRow[i++] = (byte) (p >> 8);
+                            rgbRow[i++] = (byte) p;
+                            alphaRow[x] = (byte) (p >>> 24);
+                        }
+                        rgbOut.write(rgbRow);
+                        if (alphaOut != null) {
+                            alphaOut.write(alphaRow);
+                        }
+                    }
+                }
+            } finally {
+                rgbDeflater.end();
+                if (alphaDeflater != null) {
+                    alphaDeflater.end();
+                }
+            }
+            data = rgb.toByteArray();
+            if (alpha) {
+                mask = a.toByteArray();
+            }
+        }
+
+        final ByteArrayOutputStream page = new ByteArrayOutputStream(data.length + (mask == null ? 0 : mask.length) + 64);
+        final DataOutputStream d = new DataOutputStream(page);
+        d.writeInt(w);
+        d.writeInt(h);
+        d.writeDouble(w * 72d / ppi);
+        d.writeDouble(h * 72d / ppi);
+        d.writeDouble(bleed);
+        d.writeBoolean(dct);
+        d.writeInt(data.length);
+        d.write(data);
+        d.writeInt(mask == null ? -1 : mask.length);
+        if (mask != null) {
+            d.write(mask);
+        }
+        d.flush();
+        return page.toByteArray();
+    }
+
+    private static boolean isOpaque(BufferedImage bi) {
+        final int w = bi.getWidth();
+        final int[] row = new int[w];
+        for (int y = 0; y < bi.getHeight(); ++y) {
+            bi.getRGB(0, y, w, 1, row, 0, w);
+            for (int p : row) {
+                if ((p >>> 24) != 0xff) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes an image as JPEG data, flattening any transparency onto
+     * white.
+     */
+    private static byte[] jpeg(BufferedImage bi, double quality) throws IOException {
+        if (bi.getType() != BufferedImage.TYPE_INT_RGB) {
+            final BufferedImage rgb = new BufferedImage(bi.getWidth(), bi.getHeight(), BufferedImage.TYPE_INT_RGB);
+            final Graphics2D g = rgb.createGraphics();
+            try {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, bi.getWidth(), bi.getHeight());
+                g.drawImage(bi, 0, 0, null);
+            } finally {
+                g.dispose();
+            }
+            bi = rgb;
+        }
+        final ImageWriterPool pool = ImageWriterPool.getShared();
+        final ImageWriterPool.PooledWriter wr = pool.take("jpg", quality, false, 0d);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256 * 1024);
+        try {
+            wr.writer.write(bi, out);
+        } catch (IOException | RuntimeException ex) {
+            pool.discard(wr);
+            throw ex;
+        }
+        pool.give(wr);
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a complete one-page PDF file for an encoded page.
+     */
+    static byte[] singlePage(byte[] encodedPage) throws IOException {
+        final ByteArrayOutputStream buff = new ByteArrayOutputStream(encodedPage.length + 1024);
+        try (PdfWriter pdf = new PdfWriter(null, buff)) {
+            pdf.addPage(encodedPage);
+        }
+        return buff.toByteArray();
+    }
+
+    /**
+     * Returns the sequencer used to add pages in a stable order.
+     */
+    OrderedOutput order() {
+        return order;
+    }
+
+    /**
+     * Adds a page encoded with {@link #encodePage} to the end of the
+     * document and writes it.
+     */
+    synchronized void addPage(byte[] encodedPage) throws IOException {
+        if (closed) {
+            throw new IOException("document is closed");
+        }
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(encodedPage));
+        final int w = in.readInt();
+        final int h = in.readInt();
+        final double wPt = in.readDouble();
+        final double hPt = in.readDouble();
+        final double bleed = in.readDouble();
+        final boolean dct = in.readBoolean();
+        final byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        final int maskLength = in.readInt();
+        byte[] mask = null;
+        if (maskLength >= 0) {
+            mask = new byte[maskLength];
+            in.readFully(mask);
+        }
+
+        int maskObj = 0;
+        if (mask != null) {
+            maskObj = beginObject();
+            writeStream("/Type /XObject /Subtype /Image /Width " + w + " /Height " + h
+                    + " /ColorSpace /DeviceGray /BitsPerComponent 8 /Filter /FlateDecode", mask);
+        }
+        final int imageObj = beginObject();
+        writeStream("/Type /XObject /Subtype /Image /Width " + w + " /Height " + h
+                + " /ColorSpace /DeviceRGB /BitsPerComponent 8 /Filter " + (dct ? "/DCTDecode" : "/FlateDecode")
+                + (maskObj == 0 ? "" : " /SMask " + maskObj + " 0 R"), data);
+
+        final int contentObj = beginObject();
+        writeStream("", ("q " + num(wPt) + " 0 0 " + num(hPt) + " 0 0 cm /Im0 Do Q\n").getBytes(StandardCharsets.US_ASCII));
+
+        final int pageObj = beginObject();
+        final String media = "[0 0 " + num(wPt) + ' ' + num(hPt) + ']';
+        final String trim = bleed > 0d && wPt > 2d * bleed && hPt > 2d * bleed
+                ? "[" + num(bleed) + ' ' + num(bleed) + ' ' + num(wPt - bleed) + ' ' + num(hPt - bleed) + ']'
+                : media;
+        print("<< /Type /Page /Parent 2 0 R /MediaBox " + media + " /BleedBox " + media + " /TrimBox " + trim
+                + " /Resources << /XObject << /Im0 " + imageObj + " 0 R >> >> /Contents " + contentObj + " 0 R >>\nendobj\n");
+        pages.add(pageObj);
+        out.flush();
+    }
+
+    private int beginObject() throws IOException {
+        offsets.add(out.count);
+        final int n = offsets.size();
+        print(n + " 0 obj\n");
+        return n;
+    }
+
+    private void writeStream(String dict, byte[] data) throws IOException {
+        print("<< " + dict + (dict.isEmpty() ? "" : " ") + "/Length " + data.length + " >>\nstream\n");
+        out.write(data);
+        print("\nendstream\nendobj\n");
+    }
+
+    private void print(String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static String num(double v) {
+        final String s = String.format(Locale.ROOT, "%.3f", v);
+        int end = s.length();
+        while (s.charAt(end - 1) == '0') {
+            --end;
+        }
+        if (s.charAt(end - 1) == '.') {
+            --end;
+        }
+        return s.substring(0, end);
+    }
+
+    /**
+     * Adds any pages still waiting for earlier pages, then writes the page
+     * tree, catalog and cross-reference table, and closes the file.
+     *
+     * @throws IOException if an error occurs while writing
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            order.flush();
+        } finally {
+            finishDocument();
+        }
+    }
+
+    private synchronized void finishDocument() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            offsets.set(1, out.count);
+            final StringBuilder kids = new StringBuilder();
+            for (int p : pages) {
+                if (kids.length() > 0) {
+                    kids.append(' ');
+                }
+                kids.append(p).append(" 0 R");
+            }
+            print("2 0 obj\n<< /Type /Pages /Kids [" + kids + "] /Count " + pages.size() + " >>\nendobj\n");
+            offsets.set(0, out.count);
+            print("1 0 obj\n<< /Type /Catalog /Pages 2 0 R >>\nendobj\n");
+
+            final long xref = out.count;
+            final StringBuilder b = new StringBuilder(offsets.size() * 20 + 64);
+            b.append("xref\n0 ").append(offsets.size() + 1).append("\n0000000000 65535 f \n");
+            for (long off : offsets) {
+                b.append(String.format(Locale.ROOT, "%010d 00000 n \n", off));
+            }
+            b.append("trailer\n<< /Size ").append(offsets.size() + 1).append(" /Root 1 0 R >>\nstartxref\n")
+                    .append(xref).append("\n%%EOF\n");
+            print(b.toString());
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Counts the bytes written, to record object offsets.
+     */
+    private static final class CountingStream extends FilterOutputStream {
+
+        long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
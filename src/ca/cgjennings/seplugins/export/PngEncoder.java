@@ -0,0 +1,395 @@
+package ca.cgjennings.seplugins.export;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A PNG encoder that can be used in place of the standard image writer
+ * (see {@link Exporter#setPngEncoder}). It trades file size for speed
+ * through a compression level and a choice of scanline filter, and large
+ * images are compressed in parallel: the filtered image data is split into
+ * chunks that are deflated on separate threads, each primed with the end of
+ * the previous chunk so that little compression is lost, and then joined into
+ * a single zlib stream. The result is a standard PNG file. Chunks are
+ * processed a batch at a time and written as soon as they are compressed,
+ * so the memory used does not grow with the size of the image.
+ *
+ * <p>
+ * Encoders are immutable and may be shared between threads.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class PngEncoder {
+
+    /**
+     * The filter applied to each scanline before compression.
+     * {@link #ADAPTIVE} chooses the filter for each line that is likely to
+     * compress best; the others use the same filter for every line.
+     */
+    public enum Filter {
+        NONE, SUB, UP, AVERAGE, PAETH, ADAPTIVE
+    }
+
+    /**
+     * The approximate amount of filtered image data deflated by each task.
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+    /**
+     * The size of the deflate window, and the amount of the previous chunk
+     * used as the dictionary for the next.
+     */
+    private static final int WINDOW = 32 * 1024;
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    private final int level;
+    private final Filter filter;
+    private final boolean parallel;
+
+    /**
+     * Creates an encoder that uses adaptive filtering and compresses large
+     * images in parallel.
+     *
+     * @param level the compression level, from 1 (fastest) to 9 (smallest)
+     */
+    public PngEncoder(int level) {
+        this(level, Filter.ADAPTIVE, true);
+    }
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param level the compression level, from 1 (fastest) to 9 (smallest)
+     * @param filter the scanline filter to use
+     * @param parallel if true, large images are compressed using several
+     * threads
+     */
+    public PngEncoder(int level, Filter filter, boolean parallel) {
+        if (level < 1 || level > 9) {
+            throw new IllegalArgumentException("invalid level: " + level);
+        }
+        if (filter == null) {
+            throw new NullPointerException("filter");
+        }
+        this.level = level;
+        this.filter = filter;
+        this.parallel = parallel;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Writes an image as a PNG file. Images with an alpha channel are
+     * written as 8-bit RGBA; other images as 8-bit RGB.
+     *
+     * @param image the image to write
+     * @param ppi the resolution to store in the file, or 0 to store none
+     * @param out the stream to write to; it is not closed
+     * @throws IOException if an error occurs while writing
+     */
+    public void write(BufferedImage image, double ppi, OutputStream out) throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final boolean alpha = image.getColorModel().hasAlpha();
+        final int bpp = alpha ? 4 : 3;
+        final int stride = 1 + width * bpp;
+
+        // each chunk is a run of whole scanlines
+        final int rowsPerChunk = Math.max(1, CHUNK_SIZE / stride);
+        final int chunks = (height + rowsPerChunk - 1) / rowsPerChunk;
+
+        final DataOutputStream dout = new DataOutputStream(out);
+        dout.write(SIGNATURE);
+
+        final byte[] ihdr = new byte[13];
+        putInt(ihdr, 0, width);
+        putInt(ihdr, 4, height);
+        ihdr[8] = 8;
+        ihdr[9] = (byte) (alpha ? 6 : 2);
+        writeChunk(dout, "IHDR", ihdr, 0, ihdr.length);
+
+        if (ppi > 0d) {
+            final int ppm = (int) Math.round(ppi / 0.0254d);
+            final byte[] phys = new byte[9];
+            putInt(phys, 0, ppm);
+            putInt(phys, 4, ppm);
+            phys[8] = 1;
+            writeChunk(dout, "pHYs", phys, 0, phys.length);
+        }
+
+        // the zlib header, the raw deflate chunks, and the zlib checksum,
+        // with each piece written as its own IDAT chunk
+        final int flevel = level <= 1 ? 0 : level <= 5 ? 1 : level == 6 ? 2 : 3;
+        final int cmf = 0x78;
+        int flg = flevel << 6;
+        flg += 31 - ((cmf << 8) + flg) % 31;
+        writeChunk(dout, "IDAT", new byte[]{(byte) cmf, (byte) flg}, 0, 2);
+
+        // filter and deflate a batch of chunks at a time; the last chunk of
+        // each batch is kept as the dictionary for the next
+        final int batch = parallel ? Math.max(2, Runtime.getRuntime().availableProcessors() * 2) : 1;
+        final Adler32 adler = new Adler32();
+        byte[] previous = null;
+        for (int first = 0; first < chunks; first += batch) {
+            final int n = Math.min(batch, chunks - first);
+            final int base = first;
+            final byte[][] filtered = new byte[n + 1][];
+            filtered[0] = previous;
+            range(n).forEach(i -> {
+                final int y0 = (base + i) * rowsPerChunk;
+                filtered[i + 1] = filterRows(image, y0, Math.min(height, y0 + rowsPerChunk), alpha);
+            });
+            final byte[][] compressed = new byte[n][];
+            range(n).forEach(i -> {
+                compressed[i] = deflate(filtered[i], filtered[i + 1], base + i == chunks - 1);
+            });
+            for (int i = 0; i < n; ++i) {
+                adler.update(filtered[i + 1], 0, filtered[i + 1].length);
+                writeChunk(dout, "IDAT", compressed[i], 0, compressed[i].length);
+            }
+            previous = filtered[n];
+        }
+
+        final byte[] check = new byte[4];
+        putInt(check, 0, (int) adler.getValue());
+        writeChunk(dout, "IDAT", check, 0, 4);
+
+        writeChunk(dout, "IEND", new byte[0], 0, 0);
+        dout.flush();
+    }
+
+    private IntStream range(int n) {
+        final IntStream s = IntStream.range(0, n);
+        return parallel && n > 1 ? s.parallel() : s;
+    }
+
+    /**
+     * Deflates one chunk of filtered data as raw deflate blocks, primed with
+     * the end of the previous chunk if there is one. Every chunk but the
+     * last ends on a byte boundary (with a sync flush) so that the chunks
+     * can simply be concatenated.
+     */
+    private byte[] deflate(byte[] prev, byte[] in, boolean last) {
+        final Deflater def = new Deflater(level, true);
+        try {
+            if (prev != null) {
+                final int n = Math.min(WINDOW, prev.length);
+                def.setDictionary(prev, prev.length - n, n);
+            }
+            def.setInput(in);
+            if (last) {
+                def.finish();
+            }
+            byte[] buff = new byte[Math.max(64, in.length / 2 + 64)];
+            int len = 0;
+            for (;;) {
+                if (len == buff.length) {
+                    buff = Arrays.copyOf(buff, buff.length * 2);
+                }
+                final int space = buff.length - len;
+                final int n = def.deflate(buff, len, space,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                len += n;
+                // a sync flush is complete once it stops filling the buffer
+                if (last ? def.finished() : (n < space && def.needsInput())) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(buff, len);
+        } finally {
+            def.end();
+        }
+    }
+
+    /**
+     * Converts the rows from y0 (inclusive) to y1 (exclusive) to filtered
+     * PNG scanlines.
+     */
+    private byte[] filterRows(BufferedImage image, int y0, int y1, boolean alpha) {
+        final int width = image.getWidth();
+        final int bpp = alpha ? 4 : 3;
+        final int len = width * bpp;
+        final byte[] out = new byte[(y1 - y0) * (len + 1)];
+
+        final int[] argb = new int[width];
+        byte[] prior = new byte[len];
+        byte[] cur = new byte[len];
+        if (y0 > 0) {
+            toBytes(image, y0 - 1, argb, prior, alpha);
+        }
+
+        // scratch buffers for trying each filter when adaptive
+        final byte[][] trial = filter == Filter.ADAPTIVE ? new byte[5][len] : null;
+
+        int pos = 0;
+        for (int y = y0; y < y1; ++y) {
+            toBytes(image, y, argb, cur, alpha);
+            if (trial == null) {
+                final int type = filter.ordinal();
+                out[pos] = (byte) type;
+                applyFilter(type, cur, prior, bpp, out, pos + 1);
+            } else {
+                int best = 0;
+                long bestSum = Long.MAX_VALUE;
+                for (int type = 0; type < 5; ++type) {
+                    applyFilter(type, cur, prior, bpp, trial[type], 0);
+                    final long sum = sumAbs(trial[type], bestSum);
+                    if (sum < bestSum) {
+                        bestSum = sum;
+                        best = type;
+                    }
+                }
+                out[pos] = (byte) best;
+                System.arraycopy(trial[best], 0, out, pos + 1, len);
+            }
+            pos += len + 1;
+            final byte[] t = prior;
+            prior = cur;
+            cur = t;
+        }
+        return out;
+    }
+
+    /**
+     * Copies a row of the image into RGB or RGBA byte order.
+     */
+    static void toBytes(BufferedImage image, int y, int[] argb, byte[] row, boolean alpha) {
+        final int width = argb.length;
+        final int type = image.getType();
+        if (type == BufferedImage.TYPE_INT_ARGB || type == BufferedImage.TYPE_INT_RGB) {
+            // read the pixels directly; the raster may belong to a subimage
+            final WritableRaster r = image.getRaster();
+            final DataBufferInt db = (DataBufferInt) r.getDataBuffer();
+            final int stride = ((SinglePixelPackedSampleModel) r.getSampleModel()).getScanlineStride();
+            final int offset = db.getOffset() - r.getSampleModelTranslateX()
+                    + (y - r.getSampleModelTranslateY()) * stride;
+            System.arraycopy(db.getData(), offset, argb, 0, width);
+        } else {
+            image.getRGB(0, y, width, 1, argb, 0, width);
+        }
+        int i = 0;
+        if (alpha) {
+            for (int x = 0; x < width; ++x) {
+                final int p = argb[x];
+                row[i++] = (byte) (p >>> 16);
+                row[i++] = (byte) (p >>> 8);
+                row[i++] = (byte) p;
+                row[i++] = (byte) (p >>> 24);
+            }
+        } else {
+            for (int x = 0; x < width; ++x) {
+                final int p = argb[x];
+                row[i++] = (byte) (p >>> 16);
+                row[i++] = (byte) (p >>> 8);
+                row[i++] = (byte) p;
+            }
+        }
+    }
+
+    private static void applyFilter(int type, byte[] cur, byte[] prior, int bpp, byte[] out, int off) {
+        final int len = cur.length;
+        switch (type) {
+            case 0:
+                System.arraycopy(cur, 0, out, off, len);
+                break;
+            case 1:
+                for (int i = 0; i < len; ++i) {
+                    final int a = i < bpp ? 0 : cur[i - bpp] & 0xff;
+                    out[off + i] = (byte) (cur[i] - a);
+                }
+                break;
+            case 2:
+                for (int i = 0; i < len; ++i) {
+                    out[off + i] = (byte) (cur[i] - prior[i]);
+                }
+                break;
+            case 3:
+                for (int i = 0; i < len; ++i) {
+                    final int a = i < bpp ? 0 : cur[i - bpp] & 0xff;
+                    out[off + i] = (byte) (cur[i] - ((a + (prior[i] & 0xff)) >>> 1));
+                }
+                break;
+            case 4:
+                for (int i = 0; i < len; ++i) {
+                    final int a = i < bpp ? 0 : cur[i - bpp] & 0xff;
+                    final int b = prior[i] & 0xff;
+                    final int c = i < bpp ? 0 : prior[i - bpp] & 0xff;
+                    out[off + i] = (byte) (cur[i] - paeth(a, b, c));
+                }
+                break;
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        final int p = a + b - c;
+        final int pa = Math.abs(p - a);
+        final int pb = Math.abs(p - b);
+        final int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) {
+            return a;
+        }
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Returns the sum of the filtered bytes treated as signed values, the
+     * usual heuristic for choosing a filter. Stops early once the sum
+     * reaches the limit.
+     */
+    private static long sumAbs(byte[] row, long limit) {
+        long sum = 0L;
+        for (int i = 0; i < row.length; ++i) {
+            sum += Math.abs(row[i]);
+            if (sum >= limit) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 24);
+        b[off + 1] = (byte) (v >>> 16);
+        b[off + 2] = (byte) (v >>> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data, int off, int len) throws IOException {
+        final byte[] t = type.getBytes(StandardCharsets.US_ASCII);
+        final CRC32 crc = new CRC32();
+        crc.update(t, 0, 4);
+        crc.update(data, off, len);
+        out.writeInt(len);
+        out.write(t);
+        out.write(data, off, len);
+        out.writeInt((int) crc.getValue());
+    }
+
+    @Override
+    public String toString() {
+        return "PngEncoder{" + "level=" + level + ", filter=" + filter + ", parallel=" + parallel + '}';
+    }
+}
@@ -4,7 +4,7 @@ import ca.cgjennings.apps.arkham.StrangeEons;
 import ca.cgjennings.apps.arkham.component.GameComponent;
 import ca.cgjennings.apps.arkham.sheet.Sheet;
 import ca.cgjennings.apps.arkham.sheet.UndecoratedCardBack;
-import ca.cgjennings.imageio.SimpleImageWriter;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.logging.Level;
@@ -35,23 +35,92 @@ public final class PostprocessingEntry {
         renderer = theRenderer;
     }
 
-    PostprocessingEntry(Exporter ex, File sourcePath, GameComponent gc, Sheet<? extends GameComponent> sheet, int index) {
+    PostprocessingEntry(Exporter ex, File sourcePath, GameComponent gc, Sheet<? extends GameComponent> sheet, int index, OutputProfile profile, double ppi) {
         this.sourcePath = sourcePath.getAbsolutePath();
         this.gc = gc;
         this.sheet = sheet;
         this.index = index;
-        ppi = ex.getResolution();
+        this.ppi = ppi;
         ppcm = ppi / 2.54d;
         simpleBackFace = sheet instanceof UndecoratedCardBack;
         
         bleedMargin = synthesizeBleedMargin = ex.isBleedMarginEnabled();
 
         image = renderer.render(sheet, ppi, bleedMargin);
+        renderedWidth = image.getWidth();
+        renderedHeight = image.getHeight();
 
-        format = ex.getFormat();
+        profileIndex = 0;
+        dimensionLimit = profile.getDimensionLimit();
+        suffix = profile.getSuffix();
+        format = profile.getFormat();
         changeExportPathExtension(null);
-        quality = ex.getQuality();
-        progressive = ex.isProgressive();
+        quality = profile.getQuality();
+        progressive = profile.isProgressive();
+    }
+
+    /**
+     * Creates an entry for an image that was not rendered from a sheet, such
+     * as a synthetic image used for benchmarking. The entry has no game
+     * component or sheet.
+     */
+    PostprocessingEntry(Exporter ex, File sourcePath, BufferedImage image, int index, OutputProfile profile) {
+        this.sourcePath = sourcePath.getAbsolutePath();
+        gc = null;
+        sheet = null;
+        this.index = index;
+        ppi = ex.getResolution();
+        ppcm = ppi / 2.54d;
+        simpleBackFace = false;
+        bleedMargin = synthesizeBleedMargin = ex.isBleedMarginEnabled();
+
+        this.image = image;
+        renderedWidth = image.getWidth();
+        renderedHeight = image.getHeight();
+
+        profileIndex = 0;
+        dimensionLimit = profile.getDimensionLimit();
+        suffix = profile.getSuffix();
+        format = profile.getFormat();
+        changeExportPathExtension(null);
+        quality = profile.getQuality();
+        progressive = profile.isProgressive();
+    }
+
+    /**
+     * Creates an entry for another output profile of an already rendered
+     * sheet. The new entry shares the memory reservation of the original.
+     */
+    PostprocessingEntry(PostprocessingEntry base, OutputProfile profile, int profileIndex, BufferedImage image) {
+        sourcePath = base.sourcePath;
+        gc = base.gc;
+        sheet = base.sheet;
+        index = base.index;
+        ppi = base.ppi;
+        ppcm = base.ppcm;
+        simpleBackFace = base.simpleBackFace;
+        bleedMargin = synthesizeBleedMargin = base.bleedMargin;
+
+        this.image = image;
+        renderedWidth = base.renderedWidth;
+        renderedHeight = base.renderedHeight;
+        started = base.started;
+        sheetKey = base.sheetKey;
+        stageNanos[ExportMetrics.Stage.RENDER.ordinal()] = base.stageNanos[ExportMetrics.Stage.RENDER.ordinal()];
+        synchronized (base) {
+            reservation = base.reservation;
+            if (reservation != null) {
+                reservation.retain();
+            }
+        }
+
+        this.profileIndex = profileIndex;
+        dimensionLimit = profile.getDimensionLimit();
+        suffix = profile.getSuffix();
+        format = profile.getFormat();
+        changeExportPathExtension(null);
+        quality = profile.getQuality();
+        progressive = profile.isProgressive();
     }
 
     public void changeExportPathExtension(String extension) {
@@ -59,16 +128,23 @@ public final class PostprocessingEntry {
             extension = format;
         }
 
+        exportPath = exportPath(sourcePath, index, suffix, extension);
+    }
+
+    /**
+     * Returns the path that a face of a component is exported to.
+     */
+    static String exportPath(String sourcePath, int index, String suffix, String extension) {
         final File source = new File(sourcePath);
         String name = source.getName();
         final int dot = name.indexOf('.');
         if (dot >= 0) {
             name = name.substring(0, dot);
         }
-        name += '-' + String.valueOf(index + 1) + '.' + format;
+        name += '-' + String.valueOf(index + 1) + suffix + '.' + extension;
 
         final File dest = new File(source.getParentFile(), name);
-        exportPath = dest.getAbsolutePath();
+        return dest.getAbsolutePath();
     }
 
     /**
@@ -88,11 +164,13 @@ public final class PostprocessingEntry {
      */
     public final int index;
     /**
-     * The export resolution in pixels per cm.
+     * The resolution the sheet was rendered at, in pixels per cm.
      */
     public final double ppcm;
     /**
-     * The export resolution in pixels per inch.
+     * The resolution the sheet was rendered at, in pixels per inch. This is
+     * lower than the export resolution when the sheet was rendered at a
+     * smaller size to meet a dimension limit.
      */
     public final double ppi;
     /**
@@ -122,7 +200,7 @@ public final class PostprocessingEntry {
      */
     public BufferedImage image;
     /**
-     * The file format, as supported by {@link SimpleImageWriter}.
+     * The file format, as accepted by {@link Exporter#setFormat}.
      */
     public String format;
     /**
@@ -133,4 +211,68 @@ public final class PostprocessingEntry {
      * Whether or not to save with progressive scan if supported.
      */
     public boolean progressive;
+
+    // original image size; PPI metadata is not written if this changes
+    final int renderedWidth, renderedHeight;
+    // System.nanoTime() when the entry was started, for export events
+    long started;
+    // time spent in each ExportMetrics.Stage
+    final long[] stageNanos = new long[ExportMetrics.Stage.values().length];
+    // the output profile this entry was created for, and its settings that
+    // are not exposed to scripts
+    final int profileIndex;
+    final int dimensionLimit;
+    final String suffix;
+    // if the render cache is in use, the key of the rendered sheet and the
+    // cached encoding of this entry's image
+    String sheetKey;
+    RenderCache.Encoded encoded;
+    // memory reserved for this entry's images, if a budget is in use; this is
+    // shared by all of the entries created from the same rendering
+    private Reservation reservation;
+
+    synchronized void setReservation(MemoryBudget budget, long reserved) {
+        reservation = new Reservation(budget, reserved);
+    }
+
+    /**
+     * Releases this entry's share of its memory reservation; once every
+     * entry sharing the reservation has done so, the memory is returned to
+     * its budget. This may be called more than once.
+     */
+    synchronized void releaseReservation() {
+        if (reservation != null) {
+            reservation.release();
+            reservation = null;
+        }
+    }
+
+    private static final class Reservation {
+
+        private final MemoryBudget budget;
+        private final long bytes;
+        private int refs = 1;
+
+        Reservation(MemoryBudget budget, long bytes) {
+            this.budget = budget;
+            this.bytes = bytes;
+        }
+
+        synchronized void retain() {
+            ++refs;
+        }
+
+        synchronized void release() {
+            if (--refs == 0 && budget != null) {
+                budget.release(bytes);
+            }
+        }
+    }
+
+    /**
+     * Estimates the size of the image that will be rendered for a sheet.
+     */
+    static Dimension estimateSize(Sheet<?> sheet, double ppi, boolean bleedMargin) {
+        return renderer.estimateSize(sheet, ppi, bleedMargin);
+    }
 }
@@ -0,0 +1,71 @@
+package ca.cgjennings.seplugins.export;
+
+import ca.cgjennings.apps.arkham.plugins.ScriptMonkey;
+
+/**
+ * Runs the user's postprocessing script on exported images. The script is
+ * compiled once per thread, as the body of a function, and that function is
+ * then called for each image. This avoids setting up a new script engine and
+ * evaluating the script from scratch for every sheet.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class Postprocessor {
+
+    private static final String FUNCTION_NAME = "bulkExportPostprocess";
+
+    private final String code;
+    private final String codeFile;
+    private final ThreadLocal<ScriptMonkey> engine = ThreadLocal.withInitial(this::createEngine);
+
+    /**
+     * Creates a postprocessor for the specified script code.
+     *
+     * @param code the script code to run for each image
+     * @param codeFile the file name to report in errors, or null
+     */
+    Postprocessor(String code, String codeFile) {
+        this.code = code;
+        this.codeFile = codeFile;
+    }
+
+    boolean matches(String code, String codeFile) {
+        return this.code.equals(code)
+                && (this.codeFile == null ? codeFile == null : this.codeFile.equals(codeFile));
+    }
+
+    private ScriptMonkey createEngine() {
+        ScriptMonkey sm = new ScriptMonkey("Postprocessor");
+        if (codeFile != null) {
+            sm.setInternalFileName(codeFile);
+        }
+        sm.bind("bulkItem", null);
+        sm.bind("Component", null);
+        sm.eval("useLibrary('imageutils');");
+        sm.eval("importClass(arkham.sheet.RenderTarget);");
+        sm.eval("importClass(ca.cgjennings.graphics.ImageUtilities);");
+        sm.eval("importPackage(ca.cgjennings.graphics.filters);");
+        // the user code starts on the first line so that line numbers in
+        // error messages still match the script file
+        sm.eval("function " + FUNCTION_NAME + "() {" + code + "\n}");
+        return sm;
+    }
+
+    /**
+     * Runs the script for the specified entry.
+     *
+     * @param entry the entry to process
+     */
+    void process(PostprocessingEntry entry) {
+        ScriptMonkey sm = engine.get();
+        sm.bind("bulkItem", entry);
+        sm.bind("Component", entry.gc);
+        try {
+            sm.call(FUNCTION_NAME);
+        } finally {
+            // don't keep the entry's image alive until the next call
+            sm.bind("bulkItem", null);
+            sm.bind("Component", null);
+        }
+    }
+}
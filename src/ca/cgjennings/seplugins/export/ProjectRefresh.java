@@ -0,0 +1,188 @@
+package ca.cgjennings.seplugins.export;
+
+import ca.cgjennings.apps.arkham.StrangeEons;
+import ca.cgjennings.apps.arkham.project.Member;
+import ca.cgjennings.apps.arkham.project.ProjectView;
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.EventQueue;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import javax.swing.JTree;
+import javax.swing.tree.TreePath;
+
+/**
+ * Updates the project view after an export so that it lists the files that
+ * were written, and selects them. Since members may only be used on the
+ * event dispatch thread, the folders that files may be written to are
+ * listed there before the export starts. When it ends, the written files are
+ * compared with those lists on the exporting thread, so that only the
+ * folders that gained new files are synchronized on the event dispatch
+ * thread. Written files are then matched to their members one folder at a
+ * time, rather than searching the whole project for each file, and selected
+ * in a single update.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class ProjectRefresh {
+
+    // the folders, and the members of each folder, by file
+    private final Map<File, Member> folders = new HashMap<>();
+    private final Map<File, Map<File, Member>> children = new HashMap<>();
+    private final Set<Member> stale = new LinkedHashSet<>();
+
+    private ProjectRefresh() {
+    }
+
+    /**
+     * Lists the members of the folders that files may be written to. This
+     * must be called on the event dispatch thread before the export starts.
+     *
+     * @param folders the folders that files may be written to
+     * @return a refresh that can be completed once the export ends
+     */
+    static ProjectRefresh snapshot(Collection<Member> folders) {
+        final ProjectRefresh r = new ProjectRefresh();
+        for (Member folder : folders) {
+            final File dir = folder.getFile().getAbsoluteFile();
+            r.folders.put(dir, folder);
+            r.children.put(dir, listChildren(folder));
+        }
+        return r;
+    }
+
+    /**
+     * Finds the folders that need to be synchronized, then updates the
+     * project view on the event dispatch thread. This should be called from
+     * the thread that ran the export.
+     *
+     * @param written the files that were written
+     */
+    void refresh(List<File> written) {
+        findStaleFolders(written);
+        EventQueue.invokeLater(() -> {
+            try {
+                apply(written);
+            } catch (Throwable t) {
+                StrangeEons.log.log(Level.SEVERE, "export cleanup exception", t);
+            }
+        });
+    }
+
+    /**
+     * Marks the folders that have a written file that they did not list
+     * before the export.
+     */
+    private void findStaleFolders(List<File> written) {
+        for (File f : written) {
+            final File dir = f.getAbsoluteFile().getParentFile();
+            final Map<File, Member> kids = children.get(dir);
+            if (kids != null && !kids.containsKey(f.getAbsoluteFile())) {
+                stale.add(folders.get(dir));
+            }
+        }
+    }
+
+    private static Map<File, Member> listChildren(Member folder) {
+        final Map<File, Member> kids = new HashMap<>();
+        if (folder.hasChildren()) {
+            for (Member kid : folder.getChildren()) {
+                kids.put(kid.getFile().getAbsoluteFile(), kid);
+            }
+        }
+        return kids;
+    }
+
+    /**
+     * Synchronizes the stale folders and selects the written files.
+     */
+    private void apply(List<File> written) {
+        for (Member folder : stale) {
+            folder.synchronize();
+            children.put(folder.getFile().getAbsoluteFile(), listChildren(folder));
+        }
+        if (written.isEmpty()) {
+            return;
+        }
+        final ProjectView v = StrangeEons.getWindow().getOpenProjectView();
+        if (v == null) {
+            return;
+        }
+
+        final Set<Member> selection = new LinkedHashSet<>();
+        for (File f : written) {
+            final File file = f.getAbsoluteFile();
+            final Map<File, Member> kids = children.get(file.getParentFile());
+            Member m = kids == null ? null : kids.get(file);
+            if (m == null && kids == null) {
+                m = v.getProject().findMember(f);
+            }
+            if (m != null) {
+                selection.add(m);
+            }
+        }
+        select(v, selection);
+    }
+
+    /**
+     * Replaces the selection in a project view. If the view's tree can be
+     * found, the selection is set in one step, so that listeners are told
+     * about it once; otherwise members are added one at a time.
+     */
+    private static void select(ProjectView v, Collection<Member> members) {
+        final JTree tree = findTree(v);
+        if (tree != null && tree.getModel().getRoot() == v.getProject()) {
+            final TreePath[] paths = new TreePath[members.size()];
+            int i = 0;
+            for (Member m : members) {
+                paths[i++] = pathTo(m);
+            }
+            tree.setSelectionPaths(paths);
+            if (paths.length > 0) {
+                tree.scrollPathToVisible(paths[0]);
+            }
+            return;
+        }
+        v.clearSelection();
+        for (Member m : members) {
+            v.addToSelection(m);
+        }
+    }
+
+    private static TreePath pathTo(Member m) {
+        final Deque<Object> path = new ArrayDeque<>();
+        for (Member p = m; p != null; p = p.getParent()) {
+            path.addFirst(p);
+        }
+        return new TreePath(path.toArray());
+    }
+
+    /**
+     * Returns the first tree in a container. This relies on the internal
+     * layout of {@link ProjectView}, which is not part of its API: the
+     * project tree is expected to be its only tree. If that changes and no
+     * tree is found, {@link #select} falls back to the public methods.
+     */
+    private static JTree findTree(Container c) {
+        for (Component kid : c.getComponents()) {
+            if (kid instanceof JTree) {
+                return (JTree) kid;
+            }
+            if (kid instanceof Container) {
+                final JTree t = findTree((Container) kid);
+                if (t != null) {
+                    return t;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,319 @@
+package ca.cgjennings.seplugins.export;
+
+import ca.cgjennings.apps.arkham.component.GameComponent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A content-addressed cache of encoded images, so that identical faces are
+ * only encoded (and, where possible, only rendered) once. There are two
+ * kinds of key, both SHA-1 digests:
+ *
+ * <ul>
+ * <li>An <i>image key</i> hashes the pixels of a processed image together
+ * with every setting that affects its encoding. Faces that look the same,
+ * such as a card back shared by many components, have the same image key
+ * and reuse the same encoded bytes.
+ * <li>A <i>sheet key</i> hashes the serialized state of a component, the
+ * index of the sheet, and the render settings. It records the image keys
+ * that the sheet's outputs had when last exported, so that a sheet whose
+ * outputs are all cached need not be rendered at all.
+ * </ul>
+ *
+ * <p>
+ * Encoded bytes are kept up to a fixed total size; when the cache is full,
+ * the least recently used entries are discarded. An entry also remembers the
+ * file it was first written to, so that duplicates can be hard linked to it
+ * or, if its bytes were discarded, read back from it.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class RenderCache {
+
+    private static final long DEFAULT_CAPACITY = 64L * 1024L * 1024L;
+    private static final int MAX_SHEETS = 4096;
+    private static final int MAX_IMAGES = 16384;
+    private static final RenderCache shared = new RenderCache(DEFAULT_CAPACITY);
+
+    /**
+     * Returns the cache shared by all exporters.
+     *
+     * @return the shared cache
+     */
+    static RenderCache getShared() {
+        return shared;
+    }
+
+    private final long capacity;
+    private long size;
+    private final LinkedHashMap<String, Encoded> images = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, String[]> sheets;
+    // the hashed state of recently exported components
+    private final Map<GameComponent, String> components = new WeakHashMap<>();
+
+    RenderCache(long capacity) {
+        if (capacity < 0L) {
+            throw new IllegalArgumentException("capacity: " + capacity);
+        }
+        this.capacity = capacity;
+        sheets = new LinkedHashMap<String, String[]>(256, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+                return size() > MAX_SHEETS;
+            }
+        };
+    }
+
+    /**
+     * Returns the key for a sheet of a component, or null if the component
+     * cannot be serialized. The serialized state of each component is only
+     * hashed once.
+     *
+     * @param gc the component
+     * @param index the index of the sheet
+     * @param settings a description of the settings that affect rendering
+     */
+    String sheetKey(GameComponent gc, int index, String settings) {
+        String component;
+        synchronized (components) {
+            component = components.get(gc);
+        }
+        if (component == null) {
+            final MessageDigest md = digest();
+            try (ObjectOutputStream out = new ObjectOutputStream(new DigestOutputStream(NULL, md))) {
+                out.writeObject(gc);
+            } catch (IOException | RuntimeException ex) {
+                return null;
+            }
+            component = hex(md.digest());
+            synchronized (components) {
+                components.put(gc, component);
+            }
+        }
+        final MessageDigest md = digest();
+        md.update((component + '\n' + gc.getClass().getName() + '\n' + index + '\n' + settings).getBytes(StandardCharsets.UTF_8));
+        return hex(md.digest());
+    }
+
+    /**
+     * Returns the key for an image encoded with the given settings.
+     *
+     * @param bi the processed image
+     * @param settings a description of the settings that affect encoding
+     */
+    static String imageKey(BufferedImage bi, String settings) {
+        final MessageDigest md = digest();
+        final int w = bi.getWidth();
+        final int h = bi.getHeight();
+        final int[] row = new int[w];
+        final byte[] bytes = new byte[w * 4];
+        for (int y = 0; y < h; ++y) {
+            bi.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0, i = 0; x < w; ++x) {
+                final int p = row[x];
+                bytes[i++] = (byte) (p >>> 24);
+                bytes[i++] = (byte) (p >> 16);
+                bytes[i++] = (byte) (p >> 8);
+                bytes[i++] = (byte) p;
+            }
+            md.update(bytes);
+        }
+        md.update((w + "x" + h + '\n' + settings).getBytes(StandardCharsets.UTF_8));
+        return hex(md.digest());
+    }
+
+    /**
+     * Returns the cached encoding for an image key, or null.
+     */
+    synchronized Encoded get(String imageKey) {
+        return imageKey == null ? null : images.get(imageKey);
+    }
+
+    /**
+     * Adds the encoding of an image. If there is already an entry for the
+     * key, it is kept.
+     */
+    synchronized Encoded put(String imageKey, byte[] data, int width, int height) {
+        Encoded e = images.get(imageKey);
+        if (e == null) {
+            e = new Encoded(this, data, width, height);
+            images.put(imageKey, e);
+            size += data.length;
+            trim();
+        }
+        return e;
+    }
+
+    /**
+     * Discards the bytes of the least recently used entries until the cache
+     * is within its capacity. Entries that have been written to a file are
+     * kept without their bytes, since they can still be linked to or read,
+     * unless there are too many entries.
+     */
+    private void trim() {
+        final Iterator<Map.Entry<String, Encoded>> it = images.entrySet().iterator();
+        while ((size > capacity || images.size() > MAX_IMAGES) && it.hasNext()) {
+            final Encoded e = it.next().getValue();
+            if (e.data != null) {
+                size -= e.data.length;
+                e.data = null;
+            }
+            if (e.file == null || images.size() > MAX_IMAGES) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns the cached encodings last recorded for the outputs of a sheet,
+     * one per output profile, or null if any are unknown.
+     */
+    synchronized Encoded[] getOutputs(String sheetKey, int profileCount) {
+        final String[] keys = sheetKey == null ? null : sheets.get(sheetKey);
+        if (keys == null || keys.length != profileCount) {
+            return null;
+        }
+        final Encoded[] outputs = new Encoded[profileCount];
+        for (int i = 0; i < profileCount; ++i) {
+            outputs[i] = get(keys[i]);
+            if (outputs[i] == null) {
+                return null;
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Records the image key of one output of a sheet.
+     */
+    synchronized void putOutput(String sheetKey, int profileIndex, int profileCount, String imageKey) {
+        String[] keys = sheets.get(sheetKey);
+        if (keys == null || keys.length != profileCount) {
+            keys = new String[profileCount];
+            sheets.put(sheetKey, keys);
+        }
+        keys[profileIndex] = imageKey;
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    synchronized void clear() {
+        images.clear();
+        sheets.clear();
+        synchronized (components) {
+            components.clear();
+        }
+        size = 0L;
+    }
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        final StringBuilder b = new StringBuilder(digest.length * 2);
+        for (byte d : digest) {
+            b.append(Character.forDigit((d >> 4) & 0xf, 16)).append(Character.forDigit(d & 0xf, 16));
+        }
+        return b.toString();
+    }
+
+    private static final OutputStream NULL = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * An encoded image.
+     */
+    static final class Encoded {
+
+        private final RenderCache owner;
+        // null if discarded to make room; guarded by the owner
+        private byte[] data;
+        private final long length;
+        final int width, height;
+        // the first plain file written with these bytes, with its
+        // modification time at that point
+        private File file;
+        private long modified;
+
+        private Encoded(RenderCache owner, byte[] data, int width, int height) {
+            this.owner = owner;
+            this.data = data;
+            length = data.length;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Returns the encoded bytes, reading them from the written file if
+         * they were discarded. Returns null if they are not available.
+         */
+        byte[] getData() {
+            final File f;
+            synchronized (owner) {
+                if (data != null || file == null) {
+                    return data;
+                }
+                f = linkSource();
+            }
+            if (f != null) {
+                try {
+                    return Files.readAllBytes(f.toPath());
+                } catch (IOException ex) {
+                    // fall through
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns a file that is known to hold these bytes, or null.
+         */
+        File linkSource() {
+            synchronized (owner) {
+                if (file != null && (file.lastModified() != modified || file.length() != length)) {
+                    file = null;
+                }
+                return file;
+            }
+        }
+
+        /**
+         * Records a plain file that holds these bytes, if none is recorded.
+         */
+        void written(File f) {
+            synchronized (owner) {
+                if (linkSource() == null) {
+                    file = f;
+                    modified = f.lastModified();
+                }
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package ca.cgjennings.seplugins.export;
 
 import ca.cgjennings.apps.arkham.sheet.Sheet;
+import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 
 /**
@@ -9,4 +10,28 @@ import java.awt.image.BufferedImage;
  */
 public interface SheetRenderer {
     BufferedImage render(Sheet<?> sheet, double ppi, boolean bleedMargin);
+
+    /**
+     * Estimates the size of the image that {@link #render} would return,
+     * without rendering the sheet. The estimate assumes that a bleed margin,
+     * if requested, must be added to the sheet, so it may be slightly larger
+     * than the actual image.
+     *
+     * @param sheet the sheet to be rendered
+     * @param ppi the resolution to render at
+     * @param bleedMargin whether a bleed margin is requested
+     * @return the estimated image size, in pixels
+     */
+    default Dimension estimateSize(Sheet<?> sheet, double ppi, boolean bleedMargin) {
+        final double scale = ppi / sheet.getTemplateResolution();
+        double w = sheet.getTemplateWidth() * scale;
+        double h = sheet.getTemplateHeight() * scale;
+        if (bleedMargin) {
+            // 9 pt on each edge
+            final double margin = 2d * 9d / 72d * ppi;
+            w += margin;
+            h += margin;
+        }
+        return new Dimension((int) Math.ceil(w), (int) Math.ceil(h));
+    }
 }
@@ -0,0 +1,360 @@
+package ca.cgjennings.seplugins.export;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+
+/**
+ * A lossless TIFF encoder, for print workflows that expect TIFF files (see
+ * {@link Exporter#setTiffEncoder}). Images are written as 8-bit RGB, or RGBA
+ * with unassociated alpha, with the horizontal differencing predictor and
+ * either LZW or Deflate compression. The image is split into strips of whole
+ * rows that are compressed independently, so large images are compressed
+ * in parallel without affecting the result. The resolution is stored in
+ * pixels per inch.
+ *
+ * <p>
+ * Since the strip sizes are stored before the strips, the compressed strips
+ * are kept in memory until the image is complete; the uncompressed image
+ * data is only converted a batch of strips at a time.
+ *
+ * <p>
+ * Encoders are immutable and may be shared between threads.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+public final class TiffEncoder {
+
+    /**
+     * The compression applied to each strip.
+     */
+    public enum Compression {
+        NONE(1), LZW(5), DEFLATE(8);
+
+        private final int tag;
+
+        private Compression(int tag) {
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * The approximate amount of image data in each strip.
+     */
+    private static final int STRIP_SIZE = 256 * 1024;
+
+    private final Compression compression;
+    private final boolean parallel;
+
+    /**
+     * Creates an encoder that uses LZW compression and compresses large
+     * images in parallel.
+     */
+    public TiffEncoder() {
+        this(Compression.LZW, true);
+    }
+
+    /**
+     * Creates a new encoder.
+     *
+     * @param compression the compression method
+     * @param parallel if true, large images are compressed using several
+     * threads
+     */
+    public TiffEncoder(Compression compression, boolean parallel) {
+        if (compression == null) {
+            throw new NullPointerException("compression");
+        }
+        this.compression = compression;
+        this.parallel = parallel;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Writes an image as a TIFF file.
+     *
+     * @param image the image to write
+     * @param ppi the resolution to store in the file, or 0 to store none
+     * @param out the stream to write to; it is not closed
+     * @throws IOException if an error occurs while writing
+     */
+    public void write(BufferedImage image, double ppi, OutputStream out) throws IOException {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final boolean alpha = image.getColorModel().hasAlpha();
+        final int spp = alpha ? 4 : 3;
+        final int rowsPerStrip = Math.max(1, STRIP_SIZE / (width * spp));
+        final int strips = (height + rowsPerStrip - 1) / rowsPerStrip;
+
+        final byte[][] data = new byte[strips][];
+        final int batch = parallel ? Math.max(2, Runtime.getRuntime().availableProcessors() * 2) : 1;
+        for (int first = 0; first < strips; first += batch) {
+            final int base = first;
+            range(Math.min(batch, strips - first)).forEach(i -> {
+                final int y0 = (base + i) * rowsPerStrip;
+                data[base + i] = compress(image, y0, Math.min(height, y0 + rowsPerStrip), alpha);
+            });
+        }
+
+        // header, directory, directory values, then the strips
+        final boolean resolution = ppi > 0d;
+        final int entries = 10 + (resolution ? 3 : 0) + (compression != Compression.NONE ? 1 : 0) + (alpha ? 1 : 0);
+        final int ifdSize = 2 + entries * 12 + 4;
+        final int bitsAt = 8 + ifdSize;
+        final int offsetsAt = bitsAt + spp * 2;
+        final int countsAt = offsetsAt + (strips > 1 ? strips * 4 : 0);
+        final int xResAt = countsAt + (strips > 1 ? strips * 4 : 0);
+        final int yResAt = xResAt + 8;
+        final int dataAt = resolution ? yResAt + 8 : xResAt;
+
+        final ByteBuffer b = ByteBuffer.allocate(dataAt).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+
+        // entries must be in ascending tag order
+        b.putShort((short) entries);
+        entry(b, 256, LONG, 1, width);
+        entry(b, 257, LONG, 1, height);
+        entry(b, 258, SHORT, spp, bitsAt);
+        entry(b, 259, SHORT, 1, compression.tag);
+        entry(b, 262, SHORT, 1, 2);
+        entry(b, 273, LONG, strips, strips > 1 ? offsetsAt : dataAt);
+        entry(b, 277, SHORT, 1, spp);
+        entry(b, 278, LONG, 1, rowsPerStrip);
+        entry(b, 279, LONG, strips, strips > 1 ? countsAt : data[0].length);
+        if (resolution) {
+            entry(b, 282, RATIONAL, 1, xResAt);
+            entry(b, 283, RATIONAL, 1, yResAt);
+        }
+        entry(b, 284, SHORT, 1, 1);
+        if (resolution) {
+            entry(b, 296, SHORT, 1, 2);
+        }
+        if (compression != Compression.NONE) {
+            entry(b, 317, SHORT, 1, 2);
+        }
+        if (alpha) {
+            entry(b, 338, SHORT, 1, 2);
+        }
+        b.putInt(0);
+
+        for (int i = 0; i < spp; ++i) {
+            b.putShort((short) 8);
+        }
+        if (strips > 1) {
+            long offset = dataAt;
+            for (byte[] strip : data) {
+                b.putInt((int) offset);
+                offset += strip.length;
+            }
+            if (offset > 0xffff_ffffL) {
+                throw new IOException("image is too large for a TIFF file");
+            }
+            for (byte[] strip : data) {
+                b.putInt(strip.length);
+            }
+        }
+        if (resolution) {
+            final int num = (int) Math.min(Integer.MAX_VALUE, Math.round(ppi * 1000d));
+            b.putInt(num).putInt(1000);
+            b.putInt(num).putInt(1000);
+        }
+
+        out.write(b.array(), 0, b.position());
+        for (int i = 0; i < strips; ++i) {
+            out.write(data[i]);
+            data[i] = null;
+        }
+        out.flush();
+    }
+
+    private IntStream range(int n) {
+        final IntStream s = IntStream.range(0, n);
+        return parallel && n > 1 ? s.parallel() : s;
+    }
+
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int RATIONAL = 5;
+
+    /**
+     * Writes a directory entry. Single values are stored in the entry; for
+     * anything longer, the value is the offset of the data.
+     */
+    private static void entry(ByteBuffer b, int tag, int type, int count, int value) {
+        b.putShort((short) tag).putShort((short) type).putInt(count);
+        if (type == SHORT && count == 1) {
+            b.putShort((short) value).putShort((short) 0);
+        } else {
+            b.putInt(value);
+        }
+    }
+
+    /**
+     * Converts the rows from y0 (inclusive) to y1 (exclusive) to a
+     * compressed strip.
+     */
+    private byte[] compress(BufferedImage image, int y0, int y1, boolean alpha) {
+        final int width = image.getWidth();
+        final int spp = alpha ? 4 : 3;
+        final int len = width * spp;
+        final byte[] raw = new byte[(y1 - y0) * len];
+        final int[] argb = new int[width];
+        final byte[] row = new byte[len];
+        for (int y = y0, pos = 0; y < y1; ++y, pos += len) {
+            PngEncoder.toBytes(image, y, argb, row, alpha);
+            if (compression == Compression.NONE) {
+                System.arraycopy(row, 0, raw, pos, len);
+            } else {
+                // horizontal differencing
+                for (int i = 0; i < spp; ++i) {
+                    raw[pos + i] = row[i];
+                }
+                for (int i = spp; i < len; ++i) {
+                    raw[pos + i] = (byte) (row[i] - row[i - spp]);
+                }
+            }
+        }
+        switch (compression) {
+            case NONE:
+                return raw;
+            case LZW:
+                return lzw(raw);
+            case DEFLATE:
+                return deflate(raw);
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    private static byte[] deflate(byte[] in) {
+        final Deflater def = new Deflater(6);
+        try {
+            def.setInput(in);
+            def.finish();
+            byte[] buff = new byte[Math.max(64, in.length / 2 + 64)];
+            int len = 0;
+            while (!def.finished()) {
+                if (len == buff.length) {
+                    buff = Arrays.copyOf(buff, buff.length * 2);
+                }
+                len += def.deflate(buff, len, buff.length - len);
+            }
+            return Arrays.copyOf(buff, len);
+        } finally {
+            def.end();
+        }
+    }
+
+    private static final int CLEAR = 256;
+    private static final int EOI = 257;
+    private static final int FIRST_CODE = 258;
+    private static final int MAX_CODE = 4094;
+    private static final int HASH_BITS = 13;
+
+    /**
+     * Compresses a strip with TIFF LZW: codes are written most significant
+     * bit first, and the code width grows one code earlier than in other
+     * variants of LZW.
+     */
+    private static byte[] lzw(byte[] in) {
+        // a hash table from (prefix code, next byte) to code; keys are
+        // stored plus one so that 0 marks an empty slot
+        final int[] keys = new int[1 << HASH_BITS];
+        final short[] codes = new short[1 << HASH_BITS];
+        final int mask = keys.length - 1;
+        final Bits out = new Bits(in.length / 2 + 64);
+
+        out.put(CLEAR, 9);
+        int next = FIRST_CODE;
+        int prefix = in.length == 0 ? -1 : in[0] & 0xff;
+        scan:
+        for (int i = 1; i < in.length; ++i) {
+            final int c = in[i] & 0xff;
+            final int key = ((prefix << 8) | c) + 1;
+            int h = (key * 0x9e37_79b1) >>> (32 - HASH_BITS);
+            while (keys[h] != 0) {
+                if (keys[h] == key) {
+                    prefix = codes[h];
+                    continue scan;
+                }
+                h = (h + 1) & mask;
+            }
+            out.put(prefix, width(next));
+            keys[h] = key;
+            codes[h] = (short) next;
+            if (++next == MAX_CODE) {
+                out.put(CLEAR, width(next));
+                Arrays.fill(keys, 0);
+                next = FIRST_CODE;
+            }
+            prefix = c;
+        }
+        if (prefix >= 0) {
+            out.put(prefix, width(next));
+            // the decoder adds a code after reading this one
+            ++next;
+        }
+        out.put(EOI, width(next));
+        return out.toByteArray();
+    }
+
+    private static int width(int next) {
+        return next >= 2048 ? 12 : next >= 1024 ? 11 : next >= 512 ? 10 : 9;
+    }
+
+    /**
+     * Collects codes, most significant bit first.
+     */
+    private static final class Bits {
+
+        private byte[] buff;
+        private int len;
+        private int acc;
+        private int bits;
+
+        Bits(int capacity) {
+            buff = new byte[capacity];
+        }
+
+        void put(int code, int width) {
+            acc = (acc << width) | code;
+            bits += width;
+            while (bits >= 8) {
+                bits -= 8;
+                add(acc >>> bits);
+            }
+        }
+
+        private void add(int b) {
+            if (len == buff.length) {
+                buff = Arrays.copyOf(buff, buff.length * 2);
+            }
+            buff[len++] = (byte) b;
+        }
+
+        byte[] toByteArray() {
+            if (bits > 0) {
+                add(acc << (8 - bits));
+                bits = 0;
+            }
+            return Arrays.copyOf(buff, len);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TiffEncoder{" + "compression=" + compression + ", parallel=" + parallel + '}';
+    }
+}
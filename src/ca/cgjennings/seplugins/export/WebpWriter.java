@@ -0,0 +1,128 @@
+package ca.cgjennings.seplugins.export;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes WebP images using an image writer plug-in. Java does not include a
+ * WebP writer, so this format is only available if a plug-in that provides
+ * one is installed. A quality of 1 selects lossless compression; lower
+ * qualities select lossy compression at that quality. WebP files have no
+ * standard place to store a resolution, so none is written.
+ *
+ * <p>
+ * Writers are kept for reuse once they have written an image, since looking
+ * one up and creating its native encoder can take longer than encoding a
+ * small image.
+ *
+ * @author Chris Jennings <https://cgjennings.ca/contact>
+ */
+final class WebpWriter {
+
+    private static final String FORMAT = "webp";
+    private static final ArrayDeque<ImageWriter> idle = new ArrayDeque<>();
+
+    private WebpWriter() {
+    }
+
+    /**
+     * Returns true if a WebP image writer is installed.
+     */
+    static boolean isAvailable() {
+        return ImageIO.getImageWritersByFormatName(FORMAT).hasNext();
+    }
+
+    /**
+     * Writes an image as a WebP file.
+     *
+     * @param image the image to write
+     * @param quality the quality, from 0 to 1; 1 is lossless
+     * @param out the stream to write to; it is not closed
+     * @throws IOException if no writer is installed or an error occurs while
+     * writing
+     */
+    static void write(BufferedImage image, double quality, OutputStream out) throws IOException {
+        final ImageWriter writer = take();
+        boolean ok = false;
+        try {
+            final ImageWriteParam param = writer.getDefaultWriteParam();
+            if (param.canWriteCompressed()) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                final boolean lossless = quality >= 1d;
+                final String type = compressionType(param, lossless);
+                if (type != null) {
+                    param.setCompressionType(type);
+                }
+                if (!lossless || type == null) {
+                    param.setCompressionQuality((float) quality);
+                }
+            }
+            // closing the image stream flushes it without closing out
+            try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+                writer.setOutput(ios);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.setOutput(null);
+            }
+            ok = true;
+        } finally {
+            // a writer that failed may be left in an unknown state
+            if (ok) {
+                give(writer);
+            } else {
+                writer.dispose();
+            }
+        }
+    }
+
+    /**
+     * Returns the plug-in's name for lossless or lossy compression, or null
+     * if it does not offer a choice.
+     */
+    private static String compressionType(ImageWriteParam param, boolean lossless) {
+        final String[] types = param.getCompressionTypes();
+        if (types == null) {
+            return null;
+        }
+        for (String t : types) {
+            final String name = t.toLowerCase(Locale.ROOT);
+            if (name.contains("lossless") == lossless && (lossless || name.contains("lossy"))) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private static ImageWriter take() throws IOException {
+        synchronized (idle) {
+            if (!idle.isEmpty()) {
+                return idle.pop();
+            }
+        }
+        final Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(FORMAT);
+        if (!it.hasNext()) {
+            throw new IOException("no WebP image writer is installed");
+        }
+        return it.next();
+    }
+
+    private static void give(ImageWriter writer) {
+        writer.reset();
+        synchronized (idle) {
+            if (idle.size() < Math.max(2, Runtime.getRuntime().availableProcessors())) {
+                idle.push(writer);
+                return;
+            }
+        }
+        writer.dispose();
+    }
+}